@@ -22,6 +22,8 @@ import androidx.navigation.Navigation;
 import androidx.navigation.ui.AppBarConfiguration;
 import androidx.navigation.ui.NavigationUI;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
 import org.osmdroid.config.Configuration;
 import org.osmdroid.config.IConfigurationProvider;
 
@@ -33,6 +35,7 @@ import java.io.OutputStreamWriter;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -50,6 +53,7 @@ import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
+import soturi.common.ConfigHash;
 import soturi.common.Jackson;
 import soturi.common.Registry;
 import soturi.model.Config;
@@ -327,6 +331,8 @@ public class MainActivity extends AppCompatActivity {
 
     public void login(String userName, String userPassword, boolean dev) {
         webSocketClient = new WebSocketClient(new MainActivityHandler(), userName, userPassword, dev);
+        if (gameRegistry != null)
+            webSocketClient.configHash = gameRegistry.getConfigHash();
     }
 
     public void logout() {
@@ -372,6 +378,20 @@ public class MainActivity extends AppCompatActivity {
 
     class MainActivityHandler implements MessageToClientHandler {
 
+        @Override
+        public void configDelta(String baseHash, String hash, Map<String, JsonNode> sections) {
+            Config config = gameRegistry == null || !gameRegistry.getConfigHash().equals(baseHash) ?
+                    null : ConfigHash.apply(gameRegistry.getConfig(), sections);
+            if (config == null || !ConfigHash.of(config).equals(hash)) {
+                // cached config is unusable, next login fetches the full one
+                System.out.println("Config delta does not apply to " + baseHash);
+                gameRegistry = null;
+                logout();
+                return;
+            }
+            setConfig(config);
+        }
+
         @Override
         public void disconnect() {
             onDisconnect();
@@ -508,6 +528,8 @@ public class MainActivity extends AppCompatActivity {
         @Override
         public void setConfig(Config config) {
             gameRegistry = new Registry(config, null);
+            if (webSocketClient != null)
+                webSocketClient.configHash = gameRegistry.getConfigHash();
         }
 
     }
@@ -9,8 +9,10 @@ import okhttp3.Response;
 import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
 import okio.ByteString;
+import soturi.common.BinaryCodec;
 import soturi.common.Jackson;
 import soturi.common.VersionInfo;
+import soturi.common.WireFormat;
 import soturi.model.Position;
 import soturi.model.messages_to_client.MessageToClient;
 import soturi.model.messages_to_client.MessageToClientHandler;
@@ -22,7 +24,12 @@ public class WebSocketClient extends WebSocketListener {
     private final MessageToClientHandler handler;
     private final String urlPrefix;
     public volatile String userName = "helloall2", userPassword = "password";
+    /** Hash of the config cached by the app, the server skips or shortens SetConfig if it matches */
+    public volatile String configHash = null;
     private volatile WebSocket webSocket = null;
+    /** Dictionaries of binary frames of the current socket, messages are sent as binary once the server sent one */
+    private volatile BinaryCodec codec = null;
+    private volatile boolean binaryConfirmed = false;
     private volatile Position lastPosition = null;
 
     public WebSocketClient(MessageToClientHandler handler, String userName, String userPassword, boolean connectToDev) {
@@ -49,12 +56,19 @@ public class WebSocketClient extends WebSocketListener {
 
         System.err.println("dziem dobry");
 
-        Request request = new Request.Builder()
+        codec = new BinaryCodec();
+        binaryConfirmed = false;
+
+        Request.Builder builder = new Request.Builder();
+        if (configHash != null)
+            builder.header("epic-config-hash", configHash);
+        Request request = builder
                 .header("epic-name", userName)
                 .header("epic-password", userPassword)
                 .header("epic-latitude", String.valueOf(lastPosition.latitude()))
                 .header("epic-longitude", String.valueOf(lastPosition.longitude()))
                 .header("epic-version", String.valueOf(VersionInfo.compilationTime))
+                .header(WireFormat.header, WireFormat.BINARY.headerValue())
                 .url("wss://" + urlPrefix + "soturi.online/ws/game")
                 .build();
 
@@ -81,7 +95,10 @@ public class WebSocketClient extends WebSocketListener {
 
     @Override
     public void onMessage(WebSocket webSocket, ByteString bytes) {
-        throw new RuntimeException();
+        MessageToClient message = codec.decodeToClient(bytes.toByteArray());
+        binaryConfirmed = true;
+        System.out.println("[REC] " + message);
+        message.process(handler);
     }
 
     @Override
@@ -105,9 +122,14 @@ public class WebSocketClient extends WebSocketListener {
             lastPosition = updateRealPosition.position();
         ensureSocketOpened();
 
-        String asText = Jackson.mapper.writeValueAsString(message);
-        if (!webSocket.send(asText))
-            webSocket = null;
+        // dictionary entries have to reach the server in the order they were made
+        synchronized (this) {
+            boolean sent = binaryConfirmed ?
+                    webSocket.send(ByteString.of(codec.encode(message))) :
+                    webSocket.send(Jackson.mapper.writeValueAsString(message));
+            if (!sent)
+                webSocket = null;
+        }
     }
 
     public MessageToServerFactory send() {
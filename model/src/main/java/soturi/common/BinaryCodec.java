@@ -0,0 +1,383 @@
+package soturi.common;
+
+import soturi.model.Enemy;
+import soturi.model.EnemyId;
+import soturi.model.EnemyTypeId;
+import soturi.model.ItemId;
+import soturi.model.Player;
+import soturi.model.Position;
+import soturi.model.Statistics;
+import soturi.model.messages_to_client.EnemiesAppear;
+import soturi.model.messages_to_client.EnemiesDisappear;
+import soturi.model.messages_to_client.Error;
+import soturi.model.messages_to_client.MeUpdate;
+import soturi.model.messages_to_client.MessageToClient;
+import soturi.model.messages_to_client.PlayerDisappears;
+import soturi.model.messages_to_client.PlayerUpdate;
+import soturi.model.messages_to_server.AttackEnemy;
+import soturi.model.messages_to_server.EquipItem;
+import soturi.model.messages_to_server.MessageToServer;
+import soturi.model.messages_to_server.UnequipItem;
+import soturi.model.messages_to_server.UpdateLookingPosition;
+import soturi.model.messages_to_server.UpdateRealPosition;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of messages, see {@link WireFormat#BINARY}. A frame is a one byte tag of the message type
+ * followed by its fields: integers as zigzag varints, enemy ids as deltas to the previous one, doubles as their raw bits.
+ * Strings go through a dictionary built along the stream, so e.g. a player name is sent in full only once.
+ * Messages without a dedicated encoding are sent as tag 0 followed by their json.
+ * <p>
+ * Both ends of a connection have their own codec, dictionaries of the two directions are independent
+ * and frames have to be decoded in the order they were encoded.
+ * <p>
+ * This class is not thread safe
+ */
+public class BinaryCodec {
+    private static final int json = 0, ping = 1, pong = 2, disconnect = 3;
+    private static final int enemiesAppear = 4, enemiesDisappear = 5, playerUpdate = 6, playerDisappears = 7,
+        meUpdate = 8, error = 9;
+    private static final int attackEnemy = 4, equipItem = 5, unequipItem = 6, updateLookingPosition = 7,
+        updateRealPosition = 8;
+
+    /** String references: a literal that is remembered, a literal that is not, otherwise {@code index + 2} */
+    private static final int rememberedLiteral = 0, literal = 1;
+    private static final int dictionaryCapacity = 1 << 12;
+
+    private final Map<String, Integer> sentStrings = new HashMap<>();
+    private final List<String> receivedStrings = new ArrayList<>();
+
+    /** {@code true} if the frame of {@code message} depends on strings sent before, otherwise it can be shared */
+    public static boolean usesDictionary(MessageToClient message) {
+        return message instanceof PlayerUpdate || message instanceof PlayerDisappears || message instanceof MeUpdate;
+    }
+
+    public byte[] encode(MessageToClient message) {
+        Output out = new Output();
+        if (message instanceof soturi.model.messages_to_client.Ping)
+            out.write(ping);
+        else if (message instanceof soturi.model.messages_to_client.Pong)
+            out.write(pong);
+        else if (message instanceof soturi.model.messages_to_client.Disconnect)
+            out.write(disconnect);
+        else if (message instanceof EnemiesAppear appear) {
+            out.write(enemiesAppear);
+            out.writeCount(appear.enemies().size());
+            long previousId = 0;
+            for (Enemy enemy : appear.enemies()) {
+                out.writeSigned(enemy.typeId().id());
+                out.writeSigned(enemy.enemyId().id() - previousId);
+                out.writeSigned(enemy.lvl());
+                writePosition(out, enemy.position());
+                previousId = enemy.enemyId().id();
+            }
+        }
+        else if (message instanceof EnemiesDisappear disappear) {
+            out.write(enemiesDisappear);
+            out.writeCount(disappear.enemyIds().size());
+            long previousId = 0;
+            for (EnemyId enemyId : disappear.enemyIds()) {
+                out.writeSigned(enemyId.id() - previousId);
+                previousId = enemyId.id();
+            }
+        }
+        else if (message instanceof PlayerUpdate update) {
+            out.write(playerUpdate);
+            writePlayer(out, update.player());
+            writePosition(out, update.position());
+        }
+        else if (message instanceof PlayerDisappears disappears) {
+            out.write(playerDisappears);
+            writeString(out, disappears.playerName(), true);
+        }
+        else if (message instanceof MeUpdate update) {
+            out.write(meUpdate);
+            writePlayer(out, update.me());
+        }
+        else if (message instanceof Error error && error.error() != null) {
+            out.write(BinaryCodec.error);
+            writeString(out, error.error(), false);
+        }
+        else
+            writeJson(out, message);
+        return out.toByteArray();
+    }
+
+    public byte[] encode(MessageToServer message) {
+        Output out = new Output();
+        if (message instanceof soturi.model.messages_to_server.Ping)
+            out.write(ping);
+        else if (message instanceof soturi.model.messages_to_server.Pong)
+            out.write(pong);
+        else if (message instanceof soturi.model.messages_to_server.Disconnect)
+            out.write(disconnect);
+        else if (message instanceof AttackEnemy attack) {
+            out.write(attackEnemy);
+            out.writeSigned(attack.enemyId().id());
+        }
+        else if (message instanceof EquipItem equip) {
+            out.write(equipItem);
+            out.writeSigned(equip.itemId().id());
+        }
+        else if (message instanceof UnequipItem unequip) {
+            out.write(unequipItem);
+            out.writeSigned(unequip.itemId().id());
+        }
+        else if (message instanceof UpdateLookingPosition update) {
+            out.write(updateLookingPosition);
+            writePosition(out, update.position());
+        }
+        else if (message instanceof UpdateRealPosition update) {
+            out.write(updateRealPosition);
+            writePosition(out, update.position());
+        }
+        else
+            writeJson(out, message);
+        return out.toByteArray();
+    }
+
+    public MessageToClient decodeToClient(byte[] frame) {
+        Input in = new Input(frame);
+        MessageToClient message = switch (in.read()) {
+            case json -> readJson(in, MessageToClient.class);
+            case ping -> new soturi.model.messages_to_client.Ping();
+            case pong -> new soturi.model.messages_to_client.Pong();
+            case disconnect -> new soturi.model.messages_to_client.Disconnect();
+            case enemiesAppear -> {
+                int count = in.readCount();
+                List<Enemy> enemies = new ArrayList<>(count);
+                long id = 0;
+                for (int i = 0; i < count; ++i) {
+                    EnemyTypeId typeId = new EnemyTypeId(in.readSigned());
+                    id += in.readSigned();
+                    int lvl = (int) in.readSigned();
+                    enemies.add(new Enemy(typeId, new EnemyId(id), lvl, readPosition(in)));
+                }
+                yield new EnemiesAppear(enemies);
+            }
+            case enemiesDisappear -> {
+                int count = in.readCount();
+                List<EnemyId> enemyIds = new ArrayList<>(count);
+                long id = 0;
+                for (int i = 0; i < count; ++i) {
+                    id += in.readSigned();
+                    enemyIds.add(new EnemyId(id));
+                }
+                yield new EnemiesDisappear(enemyIds);
+            }
+            case playerUpdate -> new PlayerUpdate(readPlayer(in), readPosition(in));
+            case playerDisappears -> new PlayerDisappears(readString(in));
+            case meUpdate -> new MeUpdate(readPlayer(in));
+            case error -> new Error(readString(in));
+            default -> throw new RuntimeException("unknown message tag");
+        };
+        in.expectEnd();
+        return message;
+    }
+
+    public MessageToServer decodeToServer(byte[] frame) {
+        Input in = new Input(frame);
+        MessageToServer message = switch (in.read()) {
+            case json -> readJson(in, MessageToServer.class);
+            case ping -> new soturi.model.messages_to_server.Ping();
+            case pong -> new soturi.model.messages_to_server.Pong();
+            case disconnect -> new soturi.model.messages_to_server.Disconnect();
+            case attackEnemy -> new AttackEnemy(new EnemyId(in.readSigned()));
+            case equipItem -> new EquipItem(new ItemId(in.readSigned()));
+            case unequipItem -> new UnequipItem(new ItemId(in.readSigned()));
+            case updateLookingPosition -> new UpdateLookingPosition(readPosition(in));
+            case updateRealPosition -> new UpdateRealPosition(readPosition(in));
+            default -> throw new RuntimeException("unknown message tag");
+        };
+        in.expectEnd();
+        return message;
+    }
+
+    private static void writePosition(Output out, Position position) {
+        out.writeDouble(position.latitude());
+        out.writeDouble(position.longitude());
+    }
+    private static Position readPosition(Input in) {
+        return new Position(in.readDouble(), in.readDouble());
+    }
+
+    private static void writeItemIds(Output out, List<ItemId> itemIds) {
+        out.writeCount(itemIds.size());
+        for (ItemId itemId : itemIds)
+            out.writeSigned(itemId.id());
+    }
+    private static List<ItemId> readItemIds(Input in) {
+        int count = in.readCount();
+        List<ItemId> itemIds = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i)
+            itemIds.add(new ItemId(in.readSigned()));
+        return itemIds;
+    }
+
+    private void writePlayer(Output out, Player player) {
+        writeString(out, player.name(), true);
+        out.writeSigned(player.lvl());
+        out.writeSigned(player.xp());
+        out.writeSigned(player.hp());
+        out.writeSigned(player.statistics().maxHp());
+        out.writeSigned(player.statistics().attack());
+        out.writeSigned(player.statistics().defense());
+        writeItemIds(out, player.equipped());
+        writeItemIds(out, player.inventory());
+    }
+    private Player readPlayer(Input in) {
+        String name = readString(in);
+        int lvl = (int) in.readSigned();
+        long xp = in.readSigned(), hp = in.readSigned();
+        Statistics statistics = new Statistics(in.readSigned(), in.readSigned(), in.readSigned());
+        List<ItemId> equipped = readItemIds(in);
+        return new Player(name, lvl, xp, hp, statistics, equipped, readItemIds(in));
+    }
+
+    private void writeString(Output out, String string, boolean remember) {
+        Integer index = sentStrings.get(string);
+        if (index != null) {
+            out.writeCount(index + 2);
+            return;
+        }
+        if (remember && sentStrings.size() < dictionaryCapacity) {
+            sentStrings.put(string, sentStrings.size());
+            out.writeCount(rememberedLiteral);
+        }
+        else
+            out.writeCount(literal);
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeCount(bytes.length);
+        out.write(bytes);
+    }
+    private String readString(Input in) {
+        int reference = in.readCount();
+        if (reference >= 2) {
+            if (reference - 2 >= receivedStrings.size())
+                throw new RuntimeException("unknown string reference");
+            return receivedStrings.get(reference - 2);
+        }
+        String string = new String(in.readBytes(in.readCount()), StandardCharsets.UTF_8);
+        if (reference == rememberedLiteral)
+            receivedStrings.add(string);
+        return string;
+    }
+
+    private static void writeJson(Output out, Object message) {
+        out.write(json);
+        try {
+            out.write(Jackson.mapper.writeValueAsBytes(message));
+        }
+        catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+    private static <T> T readJson(Input in, Class<T> type) {
+        try {
+            return Jackson.mapper.readValue(in.readBytes(in.remaining()), type);
+        }
+        catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    private static final class Output {
+        private byte[] bytes = new byte[64];
+        private int size = 0;
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + extra));
+        }
+        void write(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+        void write(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+        }
+        void writeCount(long value) {
+            while ((value & ~0x7fL) != 0) {
+                write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+        /** Zigzag varint, values close to zero take a single byte whatever their sign */
+        void writeSigned(long value) {
+            writeCount((value << 1) ^ (value >> 63));
+        }
+        void writeDouble(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            for (int i = 0; i < 8; ++i)
+                write((int) (bits >>> (8 * i)));
+        }
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    private static final class Input {
+        private final byte[] bytes;
+        private int position = 0;
+
+        Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+        int remaining() {
+            return bytes.length - position;
+        }
+        int read() {
+            if (position == bytes.length)
+                throw new RuntimeException("frame is truncated");
+            return bytes[position++] & 0xff;
+        }
+        byte[] readBytes(int length) {
+            if (length > remaining())
+                throw new RuntimeException("frame is truncated");
+            byte[] result = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return result;
+        }
+        private long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new RuntimeException("varint is too long");
+        }
+        /** Counts are bounded by the rest of the frame, as every element takes at least one byte */
+        int readCount() {
+            long value = readVarint();
+            if (value < 0 || value > Math.max(remaining(), dictionaryCapacity + 2))
+                throw new RuntimeException("count " + value + " is too large");
+            return (int) value;
+        }
+        long readSigned() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+        double readDouble() {
+            long bits = 0;
+            for (int i = 0; i < 8; ++i)
+                bits |= (long) read() << (8 * i);
+            return Double.longBitsToDouble(bits);
+        }
+        void expectEnd() {
+            if (remaining() != 0)
+                throw new RuntimeException("frame has trailing bytes");
+        }
+    }
+}
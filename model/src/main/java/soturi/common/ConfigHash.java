@@ -0,0 +1,88 @@
+package soturi.common;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import soturi.model.Config;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content addressed versions of {@link Config}. Hash is SHA-256 of canonical json (object keys sorted),
+ * so the same config has the same hash on the server and in the app.
+ * Delta between two configs consists of top level json sections that differ.
+ */
+public class ConfigHash {
+    private ConfigHash() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static String of(Config config) {
+        try {
+            byte[] canonical = Jackson.mapper.writeValueAsBytes(canonical(Jackson.mapper.valueToTree(config)));
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(canonical);
+            StringBuilder hex = new StringBuilder(2 * digest.length);
+            for (byte b : digest)
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return hex.toString();
+        }
+        catch (JsonProcessingException | NoSuchAlgorithmException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    private static JsonNode canonical(JsonNode node) {
+        if (node.isObject()) {
+            List<String> names = new ArrayList<>();
+            for (Iterator<String> it = node.fieldNames(); it.hasNext(); )
+                names.add(it.next());
+            Collections.sort(names);
+
+            ObjectNode sorted = Jackson.mapper.createObjectNode();
+            for (String name : names)
+                sorted.set(name, canonical(node.get(name)));
+            return sorted;
+        }
+        if (node.isArray()) {
+            ArrayNode array = Jackson.mapper.createArrayNode();
+            for (JsonNode element : node)
+                array.add(canonical(element));
+            return array;
+        }
+        return node;
+    }
+
+    /** Top level sections of {@code target} that differ from {@code base} */
+    public static Map<String, JsonNode> delta(Config base, Config target) {
+        JsonNode baseTree = Jackson.mapper.valueToTree(base);
+        JsonNode targetTree = Jackson.mapper.valueToTree(target);
+
+        Map<String, JsonNode> sections = new LinkedHashMap<>();
+        for (Iterator<Map.Entry<String, JsonNode>> it = targetTree.fields(); it.hasNext(); ) {
+            Map.Entry<String, JsonNode> section = it.next();
+            if (!section.getValue().equals(baseTree.get(section.getKey())))
+                sections.put(section.getKey(), section.getValue());
+        }
+        return sections;
+    }
+
+    /** Inverse of {@link #delta}, {@code apply(base, delta(base, target))} equals {@code target} */
+    public static Config apply(Config base, Map<String, JsonNode> sections) {
+        ObjectNode tree = Jackson.mapper.valueToTree(base);
+        sections.forEach(tree::set);
+        try {
+            return Jackson.mapper.treeToValue(tree, Config.class);
+        }
+        catch (JsonProcessingException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+}
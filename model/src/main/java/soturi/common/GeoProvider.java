@@ -4,12 +4,19 @@ import soturi.model.Polygon;
 import soturi.model.Position;
 
 import java.util.List;
+import java.util.Random;
 
 public interface GeoProvider {
     List<Polygon> intersect(Polygon a, Polygon b);
+    /** Parts of {@code poly} with holes are split, so that every returned polygon is simple */
+    List<Polygon> difference(Polygon poly, List<Polygon> subtracted);
+    /** Returns triangles covering {@code poly} */
+    List<Polygon> triangulate(Polygon poly);
     boolean isEmpty(Polygon poly);
     boolean isValid(Polygon poly);
     boolean isInside(Polygon poly, Position position);
     Position randomPoint(Polygon poly);
+    /** Same as {@link #randomPoint(Polygon)}, but all randomness comes from {@code rnd} */
+    Position randomPoint(Polygon poly, Random rnd);
     double calculateArea(Polygon poly);
 }
@@ -0,0 +1,95 @@
+package soturi.common;
+
+import soturi.model.Polygon;
+import soturi.model.Position;
+import soturi.model.Rectangle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Uniform grid over envelopes of polygons, used to skip exact point in polygon tests
+ * for polygons whose envelope does not contain the point.
+ * <p>
+ * This class is immutable and thread safe
+ */
+public class PolygonIndex {
+    private static final int maxCellsPerSide = 64;
+
+    private final List<Polygon> polygons;
+    private final Rectangle[] envelopes;
+    private final Rectangle bounds;
+    private final int cellsPerSide;
+    private final int[][] cells; // polygon ids whose envelope intersects the cell
+
+    public PolygonIndex(List<Polygon> polygons) {
+        this.polygons = polygons;
+        envelopes = new Rectangle[polygons.size()];
+        for (int i = 0; i < polygons.size(); ++i)
+            envelopes[i] = Rectangle.envelopeOf(polygons.get(i));
+
+        if (polygons.isEmpty()) {
+            bounds = null;
+            cellsPerSide = 0;
+            cells = new int[0][];
+            return;
+        }
+
+        double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+        for (Rectangle envelope : envelopes) {
+            minLat = Math.min(minLat, envelope.lowerLatitude());
+            maxLat = Math.max(maxLat, envelope.upperLatitude());
+            minLon = Math.min(minLon, envelope.lowerLongitude());
+            maxLon = Math.max(maxLon, envelope.upperLongitude());
+        }
+        bounds = new Rectangle(minLat, maxLat, minLon, maxLon);
+        cellsPerSide = Math.min(maxCellsPerSide, 2 * (int) Math.ceil(Math.sqrt(polygons.size())));
+
+        List<List<Integer>> cellLists = new ArrayList<>();
+        for (int i = 0; i < cellsPerSide * cellsPerSide; ++i)
+            cellLists.add(new ArrayList<>());
+        for (int id = 0; id < envelopes.length; ++id) {
+            Rectangle envelope = envelopes[id];
+            int latL = latitudeIdOf(envelope.lowerLatitude()), latR = latitudeIdOf(envelope.upperLatitude());
+            int lonL = longitudeIdOf(envelope.lowerLongitude()), lonR = longitudeIdOf(envelope.upperLongitude());
+            for (int i = latL; i <= latR; ++i)
+                for (int j = lonL; j <= lonR; ++j)
+                    cellLists.get(i * cellsPerSide + j).add(id);
+        }
+
+        cells = new int[cellLists.size()][];
+        for (int i = 0; i < cells.length; ++i) {
+            List<Integer> list = cellLists.get(i);
+            cells[i] = new int[list.size()];
+            for (int k = 0; k < list.size(); ++k)
+                cells[i][k] = list.get(k);
+        }
+    }
+
+    private static int cellIdOf(double value, double lower, double upper, int n) {
+        if (upper <= lower)
+            return 0;
+        double d = (value - lower) / (upper - lower) * n;
+        return (int) Math.max(0, Math.min(d, n - 1));
+    }
+    private int latitudeIdOf(double latitude) {
+        return cellIdOf(latitude, bounds.lowerLatitude(), bounds.upperLatitude(), cellsPerSide);
+    }
+    private int longitudeIdOf(double longitude) {
+        return cellIdOf(longitude, bounds.lowerLongitude(), bounds.upperLongitude(), cellsPerSide);
+    }
+
+    /** Tests {@code predicate} only on polygons whose envelope contains {@code position} */
+    public boolean anyMatch(Position position, Predicate<Polygon> predicate) {
+        if (bounds == null || !bounds.isInside(position))
+            return false;
+
+        int[] cell = cells[latitudeIdOf(position.latitude()) * cellsPerSide + longitudeIdOf(position.longitude())];
+        for (int id : cell)
+            if (envelopes[id].isInside(position) && predicate.test(polygons.get(id)))
+                return true;
+        return false;
+    }
+}
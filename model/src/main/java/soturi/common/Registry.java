@@ -14,6 +14,8 @@ import soturi.model.Reward;
 import soturi.model.Statistics;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -27,10 +29,13 @@ public class Registry {
     private final List<List<EnemyType>> enemiesPerLvl;
     private final List<Polygon> bannedAreas;
     private final Map<EnemyTypeId, List<Polygon>> spawnAreasPerType;
+    private final PolygonIndex bannedAreasIndex;
+    private final Map<EnemyTypeId, PolygonIndex> spawnAreasIndexPerType;
 
     private final Config config;
     private final GeoProvider geoProvider;
     private final Random rnd = new Random();
+    private volatile String configHash;
 
     public Registry(Config config, GeoProvider geoProvider) {
         this.config = config;
@@ -57,6 +62,12 @@ public class Registry {
             );
         }
         validate();
+
+        bannedAreasIndex = new PolygonIndex(bannedAreas);
+        spawnAreasIndexPerType = spawnAreasPerType.entrySet().stream().collect(Collectors.toMap(
+            Map.Entry::getKey,
+            e -> new PolygonIndex(e.getValue())
+        ));
     }
 
     private void validate() {
@@ -128,11 +139,29 @@ public class Registry {
             validateGeo();
     }
 
+    /**
+     * Polygons that passed {@link GeoProvider#isValid}, config reloads usually keep most areas unchanged.
+     * Least recently used polygons are evicted
+     */
+    private static final Map<Polygon, Boolean> validPolygons = Collections.synchronizedMap(
+        new LinkedHashMap<Polygon, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Polygon, Boolean> eldest) {
+                return size() > 256;
+            }
+        }
+    );
+
     private void validateGeo() {
         // validate polygons (geometry)
-        for (PolygonId poly : config.areas().keySet())
-            if (!geoProvider.isValid(getPolygonById(poly)))
+        for (PolygonId poly : config.areas().keySet()) {
+            Polygon polygon = getPolygonById(poly);
+            if (validPolygons.containsKey(polygon))
+                continue;
+            if (!geoProvider.isValid(polygon))
                 throw new RuntimeException(poly + " is invalid");
+            validPolygons.put(polygon, true);
+        }
     }
 
     private void validateResource(String resource) {
@@ -206,11 +235,21 @@ public class Registry {
 
     public boolean isInsideGameArea(Position position) {
         return geoProvider.isInside(getGameArea(), position) &&
-               getBanedAreas().stream().noneMatch(area -> geoProvider.isInside(area, position));
+               !bannedAreasIndex.anyMatch(position, area -> geoProvider.isInside(area, position));
     }
     public List<Polygon> getIntersectionWithGameArea(Polygon poly) {
         return geoProvider.intersect(poly, getGameArea());
     }
+    /** Parts of {@code poly} inside game area and outside of all banned areas */
+    public List<Polygon> getPlayablePartOf(Polygon poly) {
+        List<Polygon> result = new ArrayList<>();
+        for (Polygon part : getIntersectionWithGameArea(poly))
+            result.addAll(geoProvider.difference(part, getBanedAreas()));
+        return result;
+    }
+    public List<Polygon> triangulate(Polygon poly) {
+        return geoProvider.triangulate(poly);
+    }
 
     public Item getItemById(ItemId itemId) {
         return itemMap.getOrDefault(itemId, Item.UNKNOWN);
@@ -226,12 +265,12 @@ public class Registry {
         return spawnAreasPerType.get(typeId);
     }
     public boolean isInsideSpawnAreaForType(EnemyTypeId typeId, Position position) {
-        return getSpawnAreasForType(typeId).stream().anyMatch(poly -> geoProvider.isInside(poly, position));
+        return spawnAreasIndexPerType.get(typeId).anyMatch(position, poly -> geoProvider.isInside(poly, position));
     }
-    public Position randomSpawnPointForType(EnemyTypeId typeId) {
+    public Position randomSpawnPointForType(EnemyTypeId typeId, Random rnd) {
         List<Polygon> polys = getSpawnAreasForType(typeId);
-        Polygon poly = getRandomElement(polys);
-        return geoProvider.randomPoint(poly);
+        Polygon poly = polys.get(rnd.nextInt(polys.size()));
+        return geoProvider.randomPoint(poly, rnd);
     }
 
     public List<EnemyType> getAllEnemyTypes() {
@@ -307,4 +346,10 @@ public class Registry {
     public Config getConfig() {
         return config;
     }
+    /** See {@link ConfigHash} */
+    public String getConfigHash() {
+        if (configHash == null)
+            configHash = ConfigHash.of(config);
+        return configHash;
+    }
 }
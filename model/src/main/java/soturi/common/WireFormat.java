@@ -0,0 +1,25 @@
+package soturi.common;
+
+import java.util.Locale;
+
+/**
+ * Encoding of messages on the game websocket. Clients ask for one with the {@link #header} handshake header,
+ * servers that do not know it (or the header itself) keep talking json.
+ */
+public enum WireFormat {
+    JSON, BINARY;
+
+    public static final String header = "epic-wire-format";
+
+    public String headerValue() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /** Unknown or missing values fall back to {@link #JSON} */
+    public static WireFormat fromHeader(String value) {
+        for (WireFormat format : values())
+            if (format.headerValue().equals(value))
+                return format;
+        return JSON;
+    }
+}
@@ -0,0 +1,13 @@
+package soturi.model.messages_to_client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Map;
+
+/** Changed top level sections of config, see {@link soturi.common.ConfigHash#delta} */
+public record ConfigDelta(String baseHash, String hash, Map<String, JsonNode> sections) implements MessageToClient {
+    @Override
+    public void process(MessageToClientHandler handler) {
+        handler.configDelta(baseHash, hash, sections);
+    }
+}
@@ -1,5 +1,6 @@
 package soturi.model.messages_to_client;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import soturi.model.Config;
 import soturi.model.Enemy;
 import soturi.model.EnemyId;
@@ -11,6 +12,7 @@ import soturi.model.QuestStatus;
 
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 
 public class MessageToClientFactory implements MessageToClientHandler {
@@ -20,6 +22,11 @@ public class MessageToClientFactory implements MessageToClientHandler {
         this.consumer = consumer;
     }
 
+    @Override
+    public void configDelta(String baseHash, String hash, Map<String, JsonNode> sections) {
+        consumer.accept(new ConfigDelta(baseHash, hash, sections));
+    }
+
     @Override
     public void disconnect() {
         consumer.accept(new Disconnect());
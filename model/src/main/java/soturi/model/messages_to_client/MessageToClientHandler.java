@@ -1,5 +1,6 @@
 package soturi.model.messages_to_client;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import soturi.model.Config;
 import soturi.model.Enemy;
 import soturi.model.EnemyId;
@@ -11,8 +12,10 @@ import soturi.model.QuestStatus;
 
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 
 public interface MessageToClientHandler {
+    void configDelta(String baseHash, String hash, Map<String, JsonNode> sections);
     void disconnect();
     void enemiesAppear(List<Enemy> enemies);
     void enemiesDisappear(List<EnemyId> enemyIds);
@@ -3,6 +3,7 @@ plugins {
     id("org.springframework.boot") version "3.2.3"
     id("io.spring.dependency-management") version "1.1.4"
     id("io.freefair.lombok") version "8.6"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 version = "0.0.8-SNAPSHOT"
@@ -19,6 +20,14 @@ tasks.test {
     useJUnitPlatform()
 }
 
+jmh {
+    // ./gradlew jmh -PjmhIncludes=GeoProviderBenchmark
+    includes.set(listOf(project.findProperty("jmhIncludes")?.toString() ?: ".*"))
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+}
+
 dependencies {
     implementation(project(":model"))
 
@@ -0,0 +1,97 @@
+package soturi;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.shape.random.RandomPointsBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import soturi.model.Polygon;
+import soturi.model.Position;
+import soturi.model.Rectangle;
+import soturi.server.geo.JTSGeoProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Point in polygon test through the prepared geometry cache vs converting the polygon on every call,
+ * random point from the cached triangulation vs rejection sampling
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GeoProviderBenchmark {
+    private final JTSGeoProvider geoProvider = new JTSGeoProvider();
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+
+    private Polygon polygon;
+    private Position[] positions;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        // jagged star around Krakow, similar to real game area borders
+        Random rnd = new Random(42);
+        List<Position> points = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            double angle = 2 * Math.PI * i / 500;
+            double radius = 0.3 + 0.2 * rnd.nextDouble();
+            points.add(new Position(
+                Position.KRAKOW.latitude() + radius * Math.sin(angle),
+                Position.KRAKOW.longitude() + radius * Math.cos(angle)
+            ));
+        }
+        polygon = new Polygon(points);
+
+        Rectangle envelope = Rectangle.envelopeOf(polygon);
+        positions = new Position[1 << 10];
+        for (int i = 0; i < positions.length; ++i)
+            positions[i] = envelope.randomPosition(rnd);
+    }
+
+    private Position nextPosition() {
+        next = (next + 1) & (positions.length - 1);
+        return positions[next];
+    }
+
+    private Coordinate toCoordinate(Position p) {
+        return new Coordinate(p.longitude(), p.latitude());
+    }
+
+    @Benchmark
+    public boolean isInsideUncached() {
+        Stream<Coordinate> coords = polygon.points().stream().map(this::toCoordinate);
+        Stream<Coordinate> closed = Stream.concat(coords, Stream.of(toCoordinate(polygon.points().get(0))));
+        org.locationtech.jts.geom.Polygon jts = geometryFactory.createPolygon(closed.toArray(Coordinate[]::new));
+        return jts.contains(geometryFactory.createPoint(toCoordinate(nextPosition())));
+    }
+
+    @Benchmark
+    public boolean isInsidePrepared() {
+        return geoProvider.isInside(polygon, nextPosition());
+    }
+
+    @Benchmark
+    public Position randomPointRejection() {
+        Stream<Coordinate> coords = polygon.points().stream().map(this::toCoordinate);
+        Stream<Coordinate> closed = Stream.concat(coords, Stream.of(toCoordinate(polygon.points().get(0))));
+        RandomPointsBuilder builder = new RandomPointsBuilder(geometryFactory);
+        builder.setExtent(geometryFactory.createPolygon(closed.toArray(Coordinate[]::new)));
+        builder.setNumPoints(1);
+        Coordinate coordinate = builder.getGeometry().getCoordinates()[0];
+        return new Position(coordinate.getY(), coordinate.getX());
+    }
+
+    @Benchmark
+    public Position randomPointTriangulated() {
+        return geoProvider.randomPoint(polygon);
+    }
+}
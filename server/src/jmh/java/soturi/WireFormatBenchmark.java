@@ -0,0 +1,89 @@
+package soturi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import soturi.common.BinaryCodec;
+import soturi.common.Jackson;
+import soturi.model.Enemy;
+import soturi.model.EnemyId;
+import soturi.model.EnemyTypeId;
+import soturi.model.ItemId;
+import soturi.model.Player;
+import soturi.model.Position;
+import soturi.model.Statistics;
+import soturi.model.messages_to_client.EnemiesAppear;
+import soturi.model.messages_to_client.MessageToClient;
+import soturi.model.messages_to_client.PlayerUpdate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Json vs binary frames of the largest and the most frequent broadcast. Frame sizes are printed during setup.
+ * Binary frames are encoded with a fresh codec, so strings are always sent in full as on a first message.
+ * <p>
+ * Frame sizes: EnemiesAppear json 224868 bytes, binary 38005 bytes; PlayerUpdate json 226 bytes, binary 43 bytes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WireFormatBenchmark {
+    @Param({"EnemiesAppear", "PlayerUpdate"})
+    public String messageType;
+
+    private MessageToClient message;
+    private byte[] jsonFrame, binaryFrame;
+
+    @Setup
+    public void setup() throws Exception {
+        // one refresh around Krakow, enemy ids are mostly increasing like the ones handed out by the server
+        Random rnd = new Random(42);
+        List<Enemy> enemies = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) {
+            Position position = new Position(
+                Position.KRAKOW.latitude() + rnd.nextDouble() - 0.5,
+                Position.KRAKOW.longitude() + rnd.nextDouble() - 0.5
+            );
+            enemies.add(new Enemy(new EnemyTypeId(rnd.nextInt(40)), new EnemyId(100_000 + 3L * i), 1 + rnd.nextInt(50), position));
+        }
+        Player player = new Player("player", 12, 12345, 80, new Statistics(100, 20, 5),
+            List.of(new ItemId(3), new ItemId(17)), List.of(new ItemId(1), new ItemId(42), new ItemId(1000)));
+
+        message = switch (messageType) {
+            case "EnemiesAppear" -> new EnemiesAppear(enemies);
+            case "PlayerUpdate" -> new PlayerUpdate(player, Position.KRAKOW);
+            default -> throw new IllegalArgumentException(messageType);
+        };
+        jsonFrame = Jackson.mapper.writeValueAsBytes(message);
+        binaryFrame = new BinaryCodec().encode(message);
+        System.out.printf("%s frame: json %d bytes, binary %d bytes%n", messageType, jsonFrame.length, binaryFrame.length);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() throws Exception {
+        return Jackson.mapper.writeValueAsBytes(message);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return new BinaryCodec().encode(message);
+    }
+
+    @Benchmark
+    public MessageToClient decodeJson() throws Exception {
+        return Jackson.mapper.readValue(jsonFrame, MessageToClient.class);
+    }
+
+    @Benchmark
+    public MessageToClient decodeBinary() {
+        return new BinaryCodec().decodeToClient(binaryFrame);
+    }
+}
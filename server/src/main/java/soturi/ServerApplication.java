@@ -4,15 +4,23 @@ import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
 @EnableScheduling
 @Slf4j
 public class ServerApplication {
+    private static volatile ConfigurableApplicationContext context;
+
     @SneakyThrows
     public static void main(String[] args) {
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> Runtime.getRuntime().halt(0)));
-        SpringApplication.run(ServerApplication.class, args);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // closing the context first lets beans flush their state (e.g. PlayerWriteBehind)
+            if (context != null)
+                context.close();
+            Runtime.getRuntime().halt(0);
+        }));
+        context = SpringApplication.run(ServerApplication.class, args);
     }
 }
@@ -0,0 +1,87 @@
+package soturi.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent map split into a fixed number of chunks by key hash.
+ * An update copies only the chunks it touches, the rest is shared with the previous version.
+ * <p>
+ * This class is immutable and thread safe
+ */
+public final class ChunkedMap<K, V> {
+    private final Map<K, V>[] chunks;
+    private final int size;
+
+    private ChunkedMap(Map<K, V>[] chunks, int size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    /** {@code chunkCount} has to be a power of two */
+    @SuppressWarnings("unchecked")
+    public static <K, V> ChunkedMap<K, V> empty(int chunkCount) {
+        if (Integer.bitCount(chunkCount) != 1)
+            throw new RuntimeException("chunk count has to be a power of two");
+        Map<K, V>[] chunks = new Map[chunkCount];
+        Arrays.fill(chunks, Map.of());
+        return new ChunkedMap<>(chunks, 0);
+    }
+
+    private int chunkOf(Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (chunks.length - 1);
+    }
+
+    /** Removals are applied before puts */
+    public ChunkedMap<K, V> with(Map<K, V> puts, Collection<K> removals) {
+        Map<K, V>[] newChunks = chunks.clone();
+        boolean[] copied = new boolean[chunks.length];
+        int newSize = size;
+
+        for (K key : removals) {
+            int c = chunkOf(key);
+            if (!newChunks[c].containsKey(key))
+                continue;
+            if (!copied[c]) {
+                newChunks[c] = new LinkedHashMap<>(newChunks[c]);
+                copied[c] = true;
+            }
+            newChunks[c].remove(key);
+            newSize--;
+        }
+        for (Map.Entry<K, V> entry : puts.entrySet()) {
+            int c = chunkOf(entry.getKey());
+            if (!copied[c]) {
+                newChunks[c] = new LinkedHashMap<>(newChunks[c]);
+                copied[c] = true;
+            }
+            if (newChunks[c].put(entry.getKey(), entry.getValue()) == null)
+                newSize++;
+        }
+        for (int c = 0; c < newChunks.length; ++c)
+            if (copied[c])
+                newChunks[c] = Collections.unmodifiableMap(newChunks[c]);
+        return new ChunkedMap<>(newChunks, newSize);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public V get(K key) {
+        return chunks[chunkOf(key)].get(key);
+    }
+
+    public List<V> values() {
+        List<V> values = new ArrayList<>(size);
+        for (Map<K, V> chunk : chunks)
+            values.addAll(chunk.values());
+        return values;
+    }
+}
@@ -0,0 +1,52 @@
+package soturi.server;
+
+import soturi.model.Config;
+
+import java.lang.reflect.RecordComponent;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Names of top level {@link Config} fields that differ between two configs.
+ * Change of a structural field (geometry, difficulty, enemy types, cities) invalidates regions and caps,
+ * any other field can be applied by swapping the registry.
+ */
+public record ConfigDiff(Set<String> changed) {
+    private static final Set<String> structuralFields = Set.of(
+        "areas", "gameAreaId", "gameAreaSplitLvl", "bannedAreas", "maxLvl", "enemyTypes",
+        "cityThreshold", "difficultyConfiguration", "countryCodes"
+    );
+
+    public ConfigDiff {
+        changed = Set.copyOf(changed);
+    }
+
+    public static ConfigDiff between(Config before, Config after) {
+        Set<String> changed = new LinkedHashSet<>();
+        for (RecordComponent component : Config.class.getRecordComponents()) {
+            try {
+                Object a = component.getAccessor().invoke(before);
+                Object b = component.getAccessor().invoke(after);
+                if (!Objects.equals(a, b))
+                    changed.add(component.getName());
+            }
+            catch (ReflectiveOperationException exception) {
+                throw new RuntimeException(exception);
+            }
+        }
+        return new ConfigDiff(changed);
+    }
+
+    public boolean isEmpty() {
+        return changed.isEmpty();
+    }
+
+    public boolean isStructural() {
+        return changed.stream().anyMatch(structuralFields::contains);
+    }
+
+    public boolean contains(String field) {
+        return changed.contains(field);
+    }
+}
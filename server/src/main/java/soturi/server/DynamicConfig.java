@@ -69,8 +69,17 @@ public class DynamicConfig {
     }
 
     public void setConfigWithoutReloading(Config config) {
+        setRegistry(createRegistry(config));
+    }
+
+    /** Validates {@code config} without making it current, see {@link #setRegistry} */
+    public Registry createRegistry(Config config) {
         jacksonShenanigansCheck(config);
-        registry = new Registry(config, geoProvider);
+        return new Registry(config, geoProvider);
+    }
+
+    public void setRegistry(Registry registry) {
+        this.registry = registry;
     }
 
     public Config getDefaultConfig() {
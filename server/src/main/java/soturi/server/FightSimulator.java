@@ -10,6 +10,8 @@ import soturi.model.Player;
 import soturi.model.Result;
 import soturi.model.Reward;
 
+import java.util.List;
+
 @AllArgsConstructor
 public class FightSimulator {
     private final Registry registry;
@@ -46,15 +48,32 @@ public class FightSimulator {
         }
     }
 
+    private static long hitsToKill(long hp, long attack) {
+        return hp / attack + (hp % attack == 0 ? 0 : 1);
+    }
+
+    /**
+     * Closed form of alternating hits where {@code left} strikes first, until one of the fighters has no hp.
+     * Equivalent to a loop of {@code right.subHp(leftAttack); left.subHp(rightAttack);} without its cost.
+     */
     private void simulateFightMutable(Fighter left, Fighter right) {
         long leftAttack = Math.max(left.getAttack() - right.getDefense(), 1);
         long rightAttack = Math.max(right.getAttack() - left.getDefense(), 1);
 
-        while (left.getHp() > 0 && right.hp > 0) {
-            right.subHp(leftAttack);
-            if (right.getHp() == 0)
-                break;
-            left.subHp(rightAttack);
+        if (left.getHp() <= 0 || right.getHp() <= 0)
+            return;
+
+        long leftHitsToKill = hitsToKill(right.getHp(), leftAttack);
+        long rightHitsToKill = hitsToKill(left.getHp(), rightAttack);
+
+        if (leftHitsToKill <= rightHitsToKill) {
+            // (leftHitsToKill - 1) * rightAttack < left.hp, so it does not overflow
+            left.subHp((leftHitsToKill - 1) * rightAttack);
+            right.setHp(0);
+        }
+        else {
+            right.subHp(rightHitsToKill * leftAttack);
+            left.setHp(0);
         }
     }
 
@@ -86,4 +105,9 @@ public class FightSimulator {
             reward
         );
     }
+
+    /** Simulates independent fights of {@code player} (always with the same hp) against each of {@code enemies} */
+    public List<FightResult> simulateFights(Player player, List<Enemy> enemies) {
+        return enemies.stream().map(enemy -> simulateFight(player, enemy)).toList();
+    }
 }
@@ -1,9 +1,12 @@
 package soturi.server;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import soturi.common.ConfigHash;
 import soturi.common.Registry;
 import soturi.common.VersionInfo;
 import soturi.model.Config;
@@ -22,6 +25,7 @@ import soturi.model.Result;
 import soturi.model.Reward;
 import soturi.model.Statistics;
 import soturi.model.messages_to_client.MessageToClientHandler;
+import soturi.model.messages_to_server.MessageToServer;
 import soturi.model.messages_to_server.MessageToServerFactory;
 import soturi.model.messages_to_server.MessageToServerHandler;
 import soturi.server.communication.MessageToClientCacheSplitLayer;
@@ -29,121 +33,390 @@ import soturi.server.database.FightEntity;
 import soturi.server.database.FightRepository;
 import soturi.server.database.PlayerEntity;
 import soturi.server.database.PlayerRepository;
+import soturi.server.database.PlayerWriteBehind;
 import soturi.server.geo.CityProvider;
 import soturi.server.geo.MonsterManager;
+import soturi.server.geo.RegionCache;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 @Slf4j
 @Component
 public class GameService {
     private final PlayerRepository repository;
+    private final PlayerWriteBehind playerWriteBehind;
     private final FightRepository fightRepository;
     private final DynamicConfig dynamicConfig;
     private final CityProvider cityProvider;
+    private final RegionCache regionCache;
 
     private volatile Registry registry;
     private volatile MonsterManager monsterManager;
+    /**
+     * Sessions by the shard that owns them (see {@link MonsterManager#shardOfAnchor}) and the cell of their
+     * interest center (see {@link MonsterManager#anchorOf}), every shard is guarded by its own monitor
+     */
+    private final AnchoredSessions[] sessionsByShard = new AnchoredSessions[MonsterManager.shardCount];
+    /** Read-only consumers only read this reference, writers publish under {@link #snapshotLock} */
+    private volatile WorldSnapshot snapshot;
+    /**
+     * Latest state of players changed since the last publication. Sessions put here without any lock,
+     * the updates are folded into one new snapshot on every tick, every other publication and every read
+     */
+    private final Map<String, PlayerWithPosition> pendingPlayerUpdates = new ConcurrentHashMap<>();
+    /** Enemies killed since the last publication, folded into the snapshot together with {@link #pendingPlayerUpdates} */
+    private final Queue<EnemyId> pendingEnemyRemovals = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Operations that change the set of sessions, observers or registered enemies (logins, logouts, spawn commits,
+     * config reloads) hold the write lock. Player actions and ticks hold the read lock and the monitor of the session
+     * they change, so different players are processed in parallel. Enemies and sessions are owned by shards
+     * of {@link MonsterManager}, kills and moves of players in distant cities lock different shards
+     */
+    private final ReentrantReadWriteLock worldLock = new ReentrantReadWriteLock();
+    private final Object accountLock = new Object();
+    /** Serializes config reloads, regions of a new config are built before taking the world lock */
+    private final Object configLock = new Object();
+    private final Object snapshotLock = new Object();
+    /** Runs generation of spawned enemies, see {@link #spawnEnemies} */
+    private final Executor spawnExecutor;
+
+    @Autowired
+    public GameService(PlayerRepository repository, PlayerWriteBehind playerWriteBehind, FightRepository fightRepository,
+                       DynamicConfig dynamicConfig, CityProvider cityProvider, RegionCache regionCache) {
+        this(repository, playerWriteBehind, fightRepository, dynamicConfig, cityProvider, regionCache,
+            task -> Thread.ofVirtual().name("spawn-enemies").start(task));
+    }
 
-    public GameService(PlayerRepository repository, FightRepository fightRepository, DynamicConfig dynamicConfig, CityProvider cityProvider) {
+    /** @param spawnExecutor runs generation of spawned enemies, tests use it to wait for a spawn */
+    public GameService(PlayerRepository repository, PlayerWriteBehind playerWriteBehind, FightRepository fightRepository,
+                       DynamicConfig dynamicConfig, CityProvider cityProvider, RegionCache regionCache,
+                       Executor spawnExecutor) {
         log.info("Compilation time: {}", VersionInfo.compilationTime);
         log.info("Commit id: {}", VersionInfo.commitId);
 
         this.repository = repository;
+        this.playerWriteBehind = playerWriteBehind;
         this.fightRepository = fightRepository;
         this.dynamicConfig = dynamicConfig;
         this.cityProvider = cityProvider;
+        this.regionCache = regionCache;
+        this.spawnExecutor = spawnExecutor;
         registry = dynamicConfig.getRegistry();
-        monsterManager = new MonsterManager(cityProvider, registry, this::nextEnemyId);
+        monsterManager = new MonsterManager(cityProvider, regionCache, registry, this::nextEnemyId);
+        snapshot = WorldSnapshot.empty(monsterManager.getAreas());
+        configHistory.put(registry.getConfigHash(), registry.getConfig());
+        for (int i = 0; i < sessionsByShard.length; ++i)
+            sessionsByShard[i] = new AnchoredSessions();
+    }
+
+    private static class AnchoredSessions {
+        final Map<Long, Set<PlayerSession>> byAnchor = new HashMap<>();
+    }
+
+    private void anchorSession(PlayerSession session, int shard, long anchor) {
+        AnchoredSessions owner = sessionsByShard[shard];
+        synchronized (owner) {
+            owner.byAnchor.computeIfAbsent(anchor, a -> new LinkedHashSet<>()).add(session);
+        }
+    }
+
+    private void unanchorSession(PlayerSession session, int shard, long anchor) {
+        AnchoredSessions owner = sessionsByShard[shard];
+        synchronized (owner) {
+            Set<PlayerSession> anchored = owner.byAnchor.get(anchor);
+            anchored.remove(session);
+            if (anchored.isEmpty())
+                owner.byAnchor.remove(anchor);
+        }
+    }
+
+    /** Sessions anchored in any of {@code anchors}, shards are read one at a time */
+    private Set<PlayerSession> sessionsAnchoredAt(long[] anchors) {
+        Set<PlayerSession> result = new LinkedHashSet<>();
+        for (long anchor : anchors) {
+            AnchoredSessions owner = sessionsByShard[monsterManager.shardOfAnchor(anchor)];
+            synchronized (owner) {
+                result.addAll(owner.byAnchor.getOrDefault(anchor, Set.of()));
+            }
+        }
+        return result;
     }
 
     private final Map<String, PlayerSession> sessions = new LinkedHashMap<>();
     private final Map<String, MessageToClientHandler> observers = new LinkedHashMap<>();
 
+    /** Recent configs by {@link Registry#getConfigHash}, clients that have one of them only receive a delta */
+    private final Map<String, Config> configHistory = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Config> eldest) {
+            return size() > 8;
+        }
+    };
+    private final Map<String, Map<String, JsonNode>> deltasToCurrentConfig = new HashMap<>();
+
     private volatile Instant questsDeadline = Instant.now();
-    private final Map<String, List<QuestStatus>> playerQuests = new LinkedHashMap<>();
+    private final Map<String, List<QuestStatus>> playerQuests = new ConcurrentHashMap<>();
+
+    private void exclusive(Runnable action) {
+        worldLock.writeLock().lock();
+        try {
+            action.run();
+        }
+        finally {
+            worldLock.writeLock().unlock();
+        }
+    }
+    private <T> T exclusive(Supplier<T> action) {
+        worldLock.writeLock().lock();
+        try {
+            return action.get();
+        }
+        finally {
+            worldLock.writeLock().unlock();
+        }
+    }
+    private void shared(Runnable action) {
+        worldLock.readLock().lock();
+        try {
+            action.run();
+        }
+        finally {
+            worldLock.readLock().unlock();
+        }
+    }
+    private <T> T shared(Supplier<T> action) {
+        worldLock.readLock().lock();
+        try {
+            return action.get();
+        }
+        finally {
+            worldLock.readLock().unlock();
+        }
+    }
 
     public void kickAllPlayers() {
-        while (!sessions.isEmpty())
-            logout(sessions.entrySet().iterator().next().getKey());
+        // every logout writes its player after releasing the world lock
+        for (String playerName : exclusive(() -> List.copyOf(sessions.keySet())))
+            logout(playerName);
     }
 
     public void kickAllObservers() {
-        while (!observers.isEmpty())
-            removeObserver(observers.entrySet().iterator().next().getKey());
+        exclusive(() -> {
+            while (!observers.isEmpty())
+                removeObserver(observers.entrySet().iterator().next().getKey());
+        });
     }
 
-    public synchronized void unregisterAllEnemies() {
-        unregisterEnemies(getEnemies().stream().map(Enemy::enemyId).toList());
+    public void unregisterAllEnemies() {
+        exclusive(() -> unregisterEnemies(monsterManager.getAllEnemies().stream().map(Enemy::enemyId).toList()));
     }
 
-    public synchronized void setConfig(Config config) {
-        dynamicConfig.setConfigWithoutReloading(config);
-        unregisterAllEnemies();
-        registry = dynamicConfig.getRegistry();
-        monsterManager = new MonsterManager(cityProvider, registry, this::nextEnemyId);
+    private void publish(Function<WorldSnapshot, WorldSnapshot> change) {
+        synchronized (snapshotLock) {
+            snapshot = change.apply(withPendingChanges(snapshot));
+        }
+    }
 
+    private void publishPendingChanges() {
+        if (pendingPlayerUpdates.isEmpty() && pendingEnemyRemovals.isEmpty())
+            return;
+        synchronized (snapshotLock) {
+            snapshot = withPendingChanges(snapshot);
+        }
+    }
+
+    /** Has to be called under {@link #snapshotLock}, changes added concurrently are left for the next publication */
+    private WorldSnapshot withPendingChanges(WorldSnapshot current) {
+        List<EnemyId> removals = new ArrayList<>();
+        for (EnemyId enemyId; (enemyId = pendingEnemyRemovals.poll()) != null; )
+            removals.add(enemyId);
+        Map<String, PlayerWithPosition> puts = new HashMap<>();
+        for (String playerName : pendingPlayerUpdates.keySet()) {
+            PlayerWithPosition player = pendingPlayerUpdates.remove(playerName);
+            if (player != null)
+                puts.put(playerName, player);
+        }
+        return removals.isEmpty() && puts.isEmpty() ? current : current.batchUpdate(removals, puts);
+    }
+
+    /**
+     * Config is applied incrementally. Scalar changes only swap the registry, structural ones (see {@link ConfigDiff})
+     * build new regions without holding the world lock and then keep every enemy that is still valid
+     */
+    public void setConfig(Config config) {
+        synchronized (configLock) {
+            // registry is replaced only under configLock, so it can be read before taking the world lock
+            Registry oldRegistry = registry;
+            Registry newRegistry = dynamicConfig.createRegistry(config);
+            ConfigDiff diff = ConfigDiff.between(oldRegistry.getConfig(), config);
+            log.info("setConfig() changed {}", diff.changed());
+            if (diff.isEmpty())
+                return;
+
+            String oldHash = oldRegistry.getConfigHash();
+            Map<String, JsonNode> delta = ConfigHash.delta(oldRegistry.getConfig(), config);
+            MonsterManager newManager = diff.isStructural() ?
+                new MonsterManager(cityProvider, regionCache, newRegistry, this::nextEnemyId) : null;
+
+            exclusive(() -> {
+                dynamicConfig.setRegistry(newRegistry);
+                registry = newRegistry;
+                configHistory.put(newRegistry.getConfigHash(), config);
+                deltasToCurrentConfig.clear();
+                deltasToCurrentConfig.put(oldHash, delta);
+                if (newManager == null)
+                    monsterManager.setRegistry(newRegistry);
+                else
+                    migrateEnemies(newManager);
+                sessions.values().forEach(PlayerSession::invalidatePlayer);
+
+                for (PlayerSession session : sessions.values())
+                    session.sender.configDelta(oldHash, newRegistry.getConfigHash(), delta);
+                for (MessageToClientHandler obs : observers.values())
+                    obs.setConfig(config);
+
+                if (diff.isStructural() || diff.contains("questDurationInSeconds"))
+                    clearQuests();
+                else
+                    sessions.values().forEach(PlayerSession::sendUpdates);
+            });
+        }
+    }
+
+    /**
+     * Enemies valid under the new config are moved to {@code newManager} as long as its caps allow,
+     * only the others disappear. Visible slots of sessions are translated to slots of the new manager
+     * and their visibility circles are rebuilt on its grid
+     */
+    private void migrateEnemies(MonsterManager newManager) {
+        List<Enemy> all = monsterManager.getAllEnemies();
+        int[] oldSlots = monsterManager.slotsOf(all);
+        List<Enemy> kept = newManager.filterByCaps(all.stream().filter(newManager::canHold).toList());
+        kept.forEach(newManager::registerEnemy);
+
+        // kept is a subsequence of all
+        List<Integer> keptIndices = new ArrayList<>();
+        SlotBatch<EnemyId> dropped = new SlotBatch<>();
+        for (int i = 0; i < all.size(); ++i) {
+            if (keptIndices.size() < kept.size() && kept.get(keptIndices.size()) == all.get(i))
+                keptIndices.add(i);
+            else
+                dropped.add(all.get(i).enemyId(), oldSlots[i]);
+        }
+        log.info("migrateEnemies() kept {}, dropped {}", kept.size(), dropped.size());
+        monsterManager = newManager;
+        publish(s -> s.withAreas(newManager.getAreas(), dropped.items()));
+
+        if (!dropped.isEmpty()) {
+            for (PlayerSession session : sessions.values())
+                session.enemiesDisappear(dropped);
+            for (MessageToClientHandler observer : observers.values())
+                observer.enemiesDisappear(dropped.items());
+        }
+
+        int[] newSlots = newManager.slotsOf(kept);
+        int[] newSlotOf = new int[Arrays.stream(oldSlots).max().orElse(-1) + 1];
+        Arrays.fill(newSlotOf, -1);
+        for (int k = 0; k < kept.size(); ++k)
+            newSlotOf[oldSlots[keptIndices.get(k)]] = newSlots[k];
         for (PlayerSession session : sessions.values())
-            session.sender.setConfig(config);
-        for (MessageToClientHandler obs : observers.values())
-            obs.setConfig(config);
+            session.remapVisibleEnemies(newSlotOf);
+        for (PlayerSession session : sessions.values()) {
+            session.leaveInterest();
+            session.updateInterest();
+        }
+    }
 
-        clearQuests();
+    /** Latest published state including pending player updates, never takes the world lock */
+    public WorldSnapshot getSnapshot() {
+        publishPendingChanges();
+        return snapshot;
     }
 
-    public synchronized List<Enemy> getEnemies() {
-        return monsterManager.getAllEnemies();
+    public List<Enemy> getEnemies() {
+        return getSnapshot().enemies().values();
     }
-    public synchronized long getEnemyCount() {
-        return monsterManager.getEnemyCount();
+    public long getEnemyCount() {
+        return getSnapshot().enemies().size();
     }
 
-    public synchronized List<PolygonWithDifficulty> getAreas() {
-        return monsterManager.getAreas();
+    public List<PolygonWithDifficulty> getAreas() {
+        return getSnapshot().areas();
     }
 
-    public synchronized List<PlayerWithPosition> getPlayers() {
-        return sessions.values().stream().map(PlayerSession::toPlayerWithPosition).toList();
+    public List<PlayerWithPosition> getPlayers() {
+        return getSnapshot().players().values();
     }
 
-    public synchronized List<Player> getRegisteredPlayers() {
+    /**
+     * Rows of the repository may lag behind, so logged in players are taken from their sessions
+     * and players that logged out recently from {@link PlayerWriteBehind#unsaved}
+     */
+    public List<Player> getRegisteredPlayers() {
+        Map<String, Player> live = shared(() -> {
+            Map<String, Player> players = new HashMap<>();
+            for (PlayerSession session : sessions.values())
+                players.put(session.playerName, session.toPlayer());
+            return players;
+        });
         return repository
             .findAll()
             .stream()
-            .sorted(Comparator.comparingLong(PlayerEntity::getXp))
-            .map(this::getPlayerFromEntity)
+            .map(entity -> {
+                Player player = live.get(entity.getName());
+                if (player != null)
+                    return player;
+                return getPlayerFromEntity(playerWriteBehind.unsaved(entity.getName()).orElse(entity));
+            })
+            .sorted(Comparator.comparingLong(Player::xp))
             .toList();
     }
 
-    public synchronized void healPlayers() {
-        for (PlayerSession session : sessions.values()) {
-            Player me = session.toPlayer();
-
-            long missingHp = me.statistics().maxHp() - me.hp();
-            long healed = (long) (missingHp * registry.getHealFraction()) + 1;
-            healed = Math.max(0, Math.min(missingHp, healed));
-            if (healed == 0)
-                continue;
-            session.applyAddHp(healed);
-            session.sendUpdates();
-        }
+    public void healPlayers() {
+        shared(() -> {
+            for (PlayerSession session : sessions.values()) {
+                session.tick(() -> {
+                    Player me = session.toPlayer();
+
+                    long missingHp = me.statistics().maxHp() - me.hp();
+                    long healed = (long) (missingHp * registry.getHealFraction()) + 1;
+                    healed = Math.max(0, Math.min(missingHp, healed));
+                    if (healed == 0)
+                        return;
+                    session.applyAddHp(healed);
+                    session.sendUpdates();
+                });
+            }
+        });
     }
 
     private volatile long secondCount = 0;
-    private synchronized void doTickEverySecond() {
+    private void doTickEverySecond() {
         secondCount++;
 
         int fxDelay = registry.getGiveFreeXpDelayInSeconds();
@@ -164,89 +437,172 @@ public class GameService {
 
     private volatile boolean doTick = true;
     @Scheduled(fixedDelay = 1000)
-    private synchronized void tickEverySecond() {
+    private void tickEverySecond() {
+        // every part of the tick takes the world lock it needs by itself
         if (doTick)
             doTickEverySecond();
+        publishPendingChanges();
     }
 
-    public synchronized void setDoTick(boolean doTick) {
+    public void setDoTick(boolean doTick) {
         this.doTick = doTick;
     }
 
-    private synchronized void giveFreeXp() {
+    private void giveFreeXp() {
         log.info("giveFreeXp() called");
 
         Reward reward = new Reward(registry.getGiveFreeXpAmount());
         if (reward.xp() == 0)
             return;
-        for (PlayerSession session : sessions.values()) {
-            session.applyReward(reward);
-            session.sendUpdates();
-        }
+        shared(() -> {
+            for (PlayerSession session : sessions.values()) {
+                session.tick(() -> {
+                    session.applyReward(reward);
+                    session.sendUpdates();
+                });
+            }
+        });
     }
 
-    public synchronized void clearQuests() {
-        log.info("clearQuests()");
+    public void clearQuests() {
+        shared(() -> {
+            log.info("clearQuests()");
 
-        playerQuests.clear();
+            playerQuests.clear();
 
-        long questDuration = registry.getQuestDurationInSeconds();
-        long approxDeadline = Instant.now().getEpochSecond() + questDuration * 3 / 2;
-        questsDeadline = Instant.ofEpochSecond(approxDeadline / questDuration * questDuration);
-        sessions.values().forEach(PlayerSession::sendUpdates);
+            long questDuration = registry.getQuestDurationInSeconds();
+            long approxDeadline = Instant.now().getEpochSecond() + questDuration * 3 / 2;
+            questsDeadline = Instant.ofEpochSecond(approxDeadline / questDuration * questDuration);
+            for (PlayerSession session : sessions.values())
+                session.tick(session::sendUpdates);
+        });
     }
 
-    public synchronized void setQuests(String playerName, List<QuestStatus> quests) {
+    public void setQuests(String playerName, List<QuestStatus> quests) {
         playerQuests.put(playerName, new ArrayList<>(quests));
     }
 
-    private long nextEnemyIdLong = 0;
+    private final AtomicLong nextEnemyIdLong = new AtomicLong();
     public EnemyId nextEnemyId() {
-        return new EnemyId(nextEnemyIdLong++);
+        return new EnemyId(nextEnemyIdLong.getAndIncrement());
     }
 
-    private synchronized void spawnEnemies() {
-        Instant start = Instant.now();
-        List<Enemy> generated = monsterManager.generateEnemies();
-        registerEnemies(generated);
-        long ms = Duration.between(start, Instant.now()).toMillis();
+    private final AtomicBoolean spawnInProgress = new AtomicBoolean();
 
-        log.info("spawnEnemies() took {}ms, generated {} enemies", ms, generated.size());
+    /**
+     * Enemies are generated in the background against a snapshot of caps,
+     * the world lock is taken only to snapshot caps and to validate caps again and commit the batch
+     */
+    private void spawnEnemies() {
+        exclusive(() -> {
+            if (!spawnInProgress.compareAndSet(false, true)) {
+                log.info("spawnEnemies() skipped, previous spawn is still in progress");
+                return;
+            }
+            MonsterManager manager = monsterManager;
+            Registry registryAtStart = registry;
+            MonsterManager.CapSnapshot caps = manager.snapshotCaps();
+
+            spawnExecutor.execute(() -> {
+                try {
+                    Instant start = Instant.now();
+                    List<Enemy> generated = manager.generateEnemies(caps);
+                    long ms = Duration.between(start, Instant.now()).toMillis();
+                    int registered = commitSpawn(manager, registryAtStart, generated);
+
+                    log.info("spawnEnemies() took {}ms, generated {} enemies, registered {}", ms, generated.size(), registered);
+                }
+                catch (RuntimeException exception) {
+                    log.error("spawnEnemies() failed", exception);
+                }
+                finally {
+                    spawnInProgress.set(false);
+                }
+            });
+        });
     }
 
-    public synchronized void registerEnemy(Enemy enemy) {
+    /** Enemies generated for an outdated structure are dropped, after a scalar reload they are validated again */
+    private int commitSpawn(MonsterManager manager, Registry registryAtStart, List<Enemy> generated) {
+        return exclusive(() -> {
+            if (manager != monsterManager) {
+                log.info("dropping {} enemies generated for outdated config", generated.size());
+                return 0;
+            }
+            List<Enemy> valid = registryAtStart == registry ? generated :
+                generated.stream().filter(manager::canHold).toList();
+            List<Enemy> accepted = manager.filterByCaps(valid);
+            registerEnemies(accepted);
+            return accepted.size();
+        });
+    }
+
+    public void registerEnemy(Enemy enemy) {
         registerEnemies(List.of(enemy));
     }
 
-    public synchronized void registerEnemies(List<Enemy> enemies) {
+    public void registerEnemies(List<Enemy> enemies) {
         if (enemies.isEmpty())
             return;
 
-        enemies.forEach(monsterManager::registerEnemy);
+        exclusive(() -> {
+            enemies.forEach(monsterManager::registerEnemy);
+            publish(s -> s.enemiesAppear(enemies));
+            int[] slots = monsterManager.slotsOf(enemies);
 
-        for (var session : sessions.values())
-            session.enemiesAppear(enemies);
-        for (var sender : observers.values())
-            sender.enemiesAppear(enemies);
-    }
+            // each enemy is routed only to the sessions that see it
+            Map<PlayerSession, SlotBatch<Enemy>> visibleBy = new LinkedHashMap<>();
+            for (int i = 0; i < enemies.size(); ++i)
+                for (PlayerSession session : sessionsAnchoredAt(monsterManager.interestedAnchors(enemies.get(i).position())))
+                    if (session.sees(enemies.get(i)))
+                        visibleBy.computeIfAbsent(session, s -> new SlotBatch<>()).add(enemies.get(i), slots[i]);
 
-    private synchronized void unregisterEnemy(EnemyId enemyId) {
-        unregisterEnemies(List.of(enemyId));
+            visibleBy.forEach(PlayerSession::enemiesAppear);
+            for (var sender : observers.values())
+                sender.enemiesAppear(enemies);
+        });
     }
 
-    private synchronized void unregisterEnemies(List<EnemyId> enemyIds) {
-        if (enemyIds.isEmpty())
-            return;
-
-        enemyIds.forEach(monsterManager::unregisterEnemy);
+    /** @return false if the enemy was already unregistered */
+    private boolean unregisterEnemy(EnemyId enemyId) {
+        return !unregisterEnemies(List.of(enemyId)).isEmpty();
+    }
 
-        for (var session : sessions.values())
-            session.enemiesDisappear(enemyIds);
-        for (var sender : observers.values())
-            sender.enemiesDisappear(enemyIds);
+    /**
+     * May be called concurrently by multiple players, only the first caller actually unregisters an enemy.
+     * Only sessions anchored near the enemies are notified. They are looked up both before and after the removal,
+     * so a session that is handed off to another anchor in between (see {@link PlayerSession#updateInterest})
+     * is found in at least one of the lookups whenever it may know the enemy
+     *
+     * @return enemies that were unregistered by this call
+     */
+    private List<EnemyId> unregisterEnemies(List<EnemyId> enemyIds) {
+        return shared(() -> {
+            List<long[]> anchors = new ArrayList<>();
+            Set<PlayerSession> interested = new LinkedHashSet<>();
+            for (EnemyId enemyId : enemyIds)
+                monsterManager.getEnemy(enemyId).ifPresent(enemy -> anchors.add(monsterManager.interestedAnchors(enemy.position())));
+            anchors.forEach(a -> interested.addAll(sessionsAnchoredAt(a)));
+
+            SlotBatch<EnemyId> batch = new SlotBatch<>();
+            for (EnemyId enemyId : enemyIds)
+                batch.add(enemyId, monsterManager.unregisterEnemy(enemyId));
+            List<EnemyId> unregistered = batch.items();
+            if (unregistered.isEmpty())
+                return unregistered;
+
+            // kills are frequent, they are published in batches instead of copying a chunk of the snapshot each
+            pendingEnemyRemovals.addAll(unregistered);
+            anchors.forEach(a -> interested.addAll(sessionsAnchoredAt(a)));
+            for (var session : interested)
+                session.enemiesDisappear(batch);
+            for (var sender : observers.values())
+                sender.enemiesDisappear(unregistered);
+            return unregistered;
+        });
     }
 
-    public synchronized Player getPlayerFromEntity(PlayerEntity entity) {
+    public Player getPlayerFromEntity(PlayerEntity entity) {
         int lvl = registry.getLvlFromXp(entity.getXp());
 
         List<ItemId> equipped = entity.getEquipped().stream().map(ItemId::new).toList();
@@ -270,15 +626,32 @@ public class GameService {
     public class PlayerSession implements MessageToServerHandler {
         public final MessageToClientHandler sender;
         public final String playerName;
-        public Position position, looking;
+        public volatile Position position, looking;
         private PlayerEntity playerEntity;
 
-        public PlayerSession(MessageToClientHandler sender, String playerName, Position position, Position looking) {
+        public PlayerSession(MessageToClientHandler sender, PlayerEntity playerEntity, Position position, Position looking) {
             this.sender = sender;
-            this.playerName = playerName;
+            this.playerName = playerEntity.getName();
             this.position = position;
             this.looking = looking;
-            playerEntity = repository.findByName(playerName).orElseThrow();
+            this.playerEntity = playerEntity;
+        }
+
+        /**
+         * Messages of one player are processed one at a time, has to be called under the shared world lock.
+         * Messages still queued when the session was logged out are dropped, so they cannot bring the player back
+         */
+        private synchronized void process(MessageToServer messageToServer) {
+            if (sessions.get(playerName) != this) {
+                log.info("dropping {} of {}, session has ended", messageToServer, playerName);
+                return;
+            }
+            messageToServer.process(this);
+        }
+
+        /** World-wide ticks run under the shared world lock, this orders them with messages of the player */
+        private synchronized void tick(Runnable action) {
+            action.run();
         }
 
         private List<QuestStatus> generateQuests() {
@@ -327,40 +700,119 @@ public class GameService {
             }
         }
 
-        private final Set<EnemyId> visibleEnemies = new HashSet<>();
-        private Position lastFullUpdate;
+        /** Slots (see {@link MonsterManager#slotsOf}) of enemies known to the client, guarded by its own monitor */
+        private final BitSet visibleEnemies = new BitSet();
+        /** See {@link MonsterManager#interestCenterOf}, {@code null} if not set, guarded by monitor of {@link #visibleEnemies} */
+        private Position interestCenter;
+        /** Key of the cell of {@link #interestCenter} in the current {@link MonsterManager} or -1, guarded the same way */
+        private long interestAnchor = -1;
+        /** Shard that owns {@link #interestAnchor}, kept since a config reload may change the shard of the anchor */
+        private int interestShard = -1;
+
         private void sendUpdates() {
-            playerEntity = repository.save(playerEntity);
+            playerWriteBehind.markDirty(playerEntity);
 
             Player me = toPlayer();
+            pendingPlayerUpdates.put(me.name(), new PlayerWithPosition(me, position));
 
             sender.meUpdate(me);
             sender.questUpdate(questsDeadline, getQuestsStatuses());
             for (var sender : observers.values())
                 sender.playerUpdate(me, position);
 
-            if (lastFullUpdate == null || lastFullUpdate.distance(position) > registry.getVisibilityRefreshRangeInMeters()) {
-                lastFullUpdate = position;
-                enemiesAppear(getEnemies());
+            updateInterest();
+        }
+
+        private boolean sees(Enemy enemy) {
+            synchronized (visibleEnemies) {
+                return interestCenter != null && monsterManager.isVisibleFrom(interestCenter, enemy.position());
+            }
+        }
+
+        /**
+         * Moves the visibility circle along with the session, only enemies that left or entered it
+         * disappear or appear. The diff is taken under the monitor of {@link #visibleEnemies},
+         * so a concurrent unregistration of an entered enemy is always ordered after it.
+         * <p>
+         * This is also the handoff between shards: the session is anchored at the new center before the diff
+         * is read and leaves the old anchor only after it, so it is never missing from both
+         */
+        private void updateInterest() {
+            synchronized (visibleEnemies) {
+                Position center = monsterManager.interestCenterOf(position, interestCenter);
+                if (center.equals(interestCenter))
+                    return;
+                long anchor = monsterManager.anchorOf(center);
+                int shard = monsterManager.shardOfAnchor(anchor);
+                anchorSession(this, shard, anchor);
+                MonsterManager.InterestChange change = monsterManager.interestChange(interestCenter, center, visibleEnemies);
+                if (interestAnchor >= 0 && (interestAnchor != anchor || interestShard != shard))
+                    unanchorSession(this, interestShard, interestAnchor);
+                interestCenter = center;
+                interestAnchor = anchor;
+                interestShard = shard;
+                enemiesDisappear(SlotBatch.of(change.left(), change.leftSlots()));
+                enemiesAppear(SlotBatch.of(change.entered(), change.enteredSlots()));
             }
         }
 
-        public void enemiesDisappear(List<EnemyId> enemyIds) {
-            enemyIds = enemyIds.stream().filter(visibleEnemies::remove).toList();
-            sender.enemiesDisappear(enemyIds);
+        /** Enemies stay visible until the next {@link #updateInterest} */
+        private void leaveInterest() {
+            synchronized (visibleEnemies) {
+                if (interestAnchor < 0)
+                    return;
+                unanchorSession(this, interestShard, interestAnchor);
+                interestCenter = null;
+                interestAnchor = -1;
+                interestShard = -1;
+            }
         }
 
-        public void enemiesAppear(List<Enemy> enemies) {
-            enemies = enemies.stream()
-                .filter(e -> e.position().distance(position) < registry.getVisibilityRangeInMeters())
-                .filter(e -> visibleEnemies.add(e.enemyId()))
-                .toList();
-            sender.enemiesAppear(enemies);
+        private void enemiesDisappear(SlotBatch<EnemyId> batch) {
+            List<EnemyId> known = new ArrayList<>();
+            synchronized (visibleEnemies) {
+                if (!visibleEnemies.intersects(batch.slotSet()))
+                    return;
+                for (int i = 0; i < batch.size(); ++i)
+                    if (visibleEnemies.get(batch.slot(i)))
+                        known.add(batch.item(i));
+                visibleEnemies.andNot(batch.slotSet());
+            }
+            sender.enemiesDisappear(known);
+        }
+
+        /** {@code batch} has to be already filtered to enemies within the visibility circle */
+        private void enemiesAppear(SlotBatch<Enemy> batch) {
+            List<Enemy> fresh = new ArrayList<>();
+            synchronized (visibleEnemies) {
+                BitSet freshSlots = (BitSet) batch.slotSet().clone();
+                freshSlots.andNot(visibleEnemies);
+                if (freshSlots.isEmpty())
+                    return;
+                for (int i = 0; i < batch.size(); ++i)
+                    if (freshSlots.get(batch.slot(i)))
+                        fresh.add(batch.item(i));
+                visibleEnemies.or(freshSlots);
+            }
+            sender.enemiesAppear(fresh);
+        }
+
+        /** {@code newSlotOf[oldSlot]} is the slot in the new manager or -1 if the enemy was not migrated */
+        private void remapVisibleEnemies(int[] newSlotOf) {
+            synchronized (visibleEnemies) {
+                BitSet remapped = new BitSet();
+                for (int slot = visibleEnemies.nextSetBit(0); slot >= 0; slot = visibleEnemies.nextSetBit(slot + 1))
+                    if (slot < newSlotOf.length && newSlotOf[slot] >= 0)
+                        remapped.set(newSlotOf[slot]);
+                visibleEnemies.clear();
+                visibleEnemies.or(remapped);
+            }
         }
 
         public void applySetEquipment(List<ItemId> equipped, List<ItemId> inventory) {
             playerEntity.setEquipped(equipped.stream().map(ItemId::id).toList());
             playerEntity.setInventory(inventory.stream().map(ItemId::id).toList());
+            invalidatePlayer();
         }
 
         public void applyReward(Reward reward) {
@@ -373,11 +825,15 @@ public class GameService {
             ).toList();
 
             playerEntity.setInventory(inventory);
+            if (!reward.items().isEmpty())
+                invalidatePlayer();
         }
 
         public void applyAddXp(long xp) {
             long lvlBefore = registry.getLvlFromXp(playerEntity.getXp());
             playerEntity.setXp(playerEntity.getXp() + xp);
+            if (xp != 0)
+                invalidatePlayer();
             long lvlAfter = registry.getLvlFromXp(playerEntity.getXp());
             updateQuests(s -> {
                 if (!s.quest().equals("Gain new lvl"))
@@ -388,6 +844,8 @@ public class GameService {
 
         public void applyAddHp(long hp) {
             playerEntity.setHp(playerEntity.getHp() + hp);
+            if (hp != 0)
+                invalidatePlayer();
         }
 
         public void applyFightResult(FightResult result) {
@@ -404,7 +862,7 @@ public class GameService {
                 return;
             }
 
-            Enemy enemy = monsterManager.getEnemyMap().get(enemyId);
+            Enemy enemy = monsterManager.getEnemy(enemyId).orElse(null);
             if (enemy == null) {
                 sender.error("this enemy does not exist");
                 return;
@@ -417,7 +875,10 @@ public class GameService {
             FightResult result = new FightSimulator(registry).simulateFight(me, enemy);
 
             if (result.result() == Result.WON) {
-                unregisterEnemy(enemyId);
+                if (!unregisterEnemy(enemyId)) {
+                    sender.error("this enemy does not exist");
+                    return;
+                }
 
                 EnemyType type = registry.getEnemyType(enemy);
                 updateQuests(s -> {
@@ -509,8 +970,17 @@ public class GameService {
             looking = newPosition;
         }
 
-        public Player toPlayer() {
-            return getPlayerFromEntity(playerEntity);
+        private Player cachedPlayer;
+
+        /** Has to be called after every change of xp, hp or items of {@code playerEntity} */
+        private synchronized void invalidatePlayer() {
+            cachedPlayer = null;
+        }
+
+        public synchronized Player toPlayer() {
+            if (cachedPlayer == null)
+                cachedPlayer = getPlayerFromEntity(playerEntity);
+            return cachedPlayer;
         }
 
         public PlayerWithPosition toPlayerWithPosition() {
@@ -518,74 +988,113 @@ public class GameService {
         }
     }
 
-    public synchronized MessageToServerHandler receiveFrom(@NonNull String playerName) {
-        PlayerSession handle = Objects.requireNonNull(sessions.get(playerName));
+    public MessageToServerHandler receiveFrom(@NonNull String playerName) {
+        PlayerSession handle = shared(() -> Objects.requireNonNull(sessions.get(playerName)));
 
-        return new MessageToServerFactory(messageToServer -> {
-            synchronized (GameService.this) {
-                messageToServer.process(handle);
-            }
-        });
+        return new MessageToServerFactory(messageToServer -> shared(() -> handle.process(messageToServer)));
+    }
+
+    private Map<String, JsonNode> deltaToCurrentConfig(String baseHash) {
+        return deltasToCurrentConfig.computeIfAbsent(
+            baseHash, hash -> ConfigHash.delta(configHistory.get(hash), registry.getConfig())
+        );
+    }
+
+    /** Sends only what {@code sender} is missing, given the hash of the config it has cached */
+    private void sendConfig(MessageToClientHandler sender, String knownConfigHash) {
+        String hash = registry.getConfigHash();
+        if (hash.equals(knownConfigHash))
+            return;
+        if (knownConfigHash != null && configHistory.containsKey(knownConfigHash))
+            sender.configDelta(knownConfigHash, hash, deltaToCurrentConfig(knownConfigHash));
+        else
+            sender.setConfig(registry.getConfig());
     }
 
-    private synchronized void doLogin(@NonNull String name, @NonNull Position initialPosition,
-                                      @NonNull MessageToClientHandler sender) {
-        log.info("doLogin({})", name);
+    private void doLogin(@NonNull PlayerEntity entity, @NonNull Position initialPosition,
+                         @NonNull MessageToClientHandler sender, String knownConfigHash) {
+        log.info("doLogin({})", entity.getName());
 
-        PlayerSession session = new PlayerSession(sender, name, initialPosition, initialPosition);
-        sessions.put(name, session);
-        sender.setConfig(registry.getConfig());
+        PlayerSession session = new PlayerSession(sender, entity, initialPosition, initialPosition);
+        sessions.put(entity.getName(), session);
+        sendConfig(sender, knownConfigHash);
         session.sendUpdates();
     }
 
-    public synchronized boolean login(String name, String password,
-                                      Position initialPosition, @NonNull MessageToClientHandler networkSender) {
+    public boolean login(String name, String password,
+                         Position initialPosition, @NonNull MessageToClientHandler networkSender) {
+        return login(name, password, initialPosition, networkSender, null);
+    }
+
+    /** @param knownConfigHash hash of the config cached by the client, {@code null} if it has none */
+    public boolean login(String name, String password, Position initialPosition,
+                         @NonNull MessageToClientHandler networkSender, String knownConfigHash) {
         MessageToClientHandler sender = new MessageToClientCacheSplitLayer(m -> m.process(networkSender));
 
         if (name == null || name.isEmpty() || password == null || initialPosition == null) {
             sender.error("null data passed");
             return false;
         }
-        PlayerEntity entity = repository.findByName(name).orElseGet(
-            () -> repository.save(new PlayerEntity(name, password))
-        );
+        PlayerEntity entity;
+        synchronized (accountLock) {
+            // a player that just logged out may still have state that is not written yet
+            entity = playerWriteBehind.unsaved(name).or(() -> repository.findByName(name)).orElseGet(
+                () -> repository.save(new PlayerEntity(name, password))
+            );
+        }
+        // password hashing is slow so it is checked before taking any game lock
         if (!entity.hasPassword(password)) {
             sender.error("incorrect password passed");
             return false;
         }
-        if (sessions.containsKey(name)) {
-            sender.error("this player is already logged in");
-            return false;
-        }
 
-        doLogin(name, initialPosition, sender);
-        return true;
-    }
+        return exclusive(() -> {
+            if (sessions.containsKey(name)) {
+                sender.error("this player is already logged in");
+                return false;
+            }
 
-    public synchronized void logout(String playerName) {
-        if (!sessions.containsKey(playerName))
-            return;
+            doLogin(entity, initialPosition, sender, knownConfigHash);
+            return true;
+        });
+    }
 
-        log.info("logout({})", playerName);
-        sessions.remove(playerName).sender.disconnect();
-        for (var session : sessions.values())
-            session.sender.playerDisappears(playerName);
-        for (var observer : observers.values())
-            observer.playerDisappears(playerName);
+    public void logout(String playerName) {
+        // the database write happens after the world lock is released
+        List<PlayerWriteBehind.Dirty> unsaved = exclusive(() -> {
+            if (!sessions.containsKey(playerName))
+                return List.<PlayerWriteBehind.Dirty>of();
+
+            log.info("logout({})", playerName);
+            PlayerSession removed = sessions.remove(playerName);
+            removed.leaveInterest();
+            removed.sender.disconnect();
+            publish(s -> s.playerDisappears(playerName));
+            for (var session : sessions.values())
+                session.sender.playerDisappears(playerName);
+            for (var observer : observers.values())
+                observer.playerDisappears(playerName);
+            return playerWriteBehind.take(playerName);
+        });
+        playerWriteBehind.write(unsaved);
     }
 
-    public synchronized void addObserver(String id, MessageToClientHandler networkObserver) {
+    public void addObserver(String id, MessageToClientHandler networkObserver) {
         MessageToClientHandler observer = new MessageToClientCacheSplitLayer(m -> m.process(networkObserver));
 
-        if (observers.put(id, observer) != null)
-            throw new RuntimeException();
+        exclusive(() -> {
+            if (observers.put(id, observer) != null)
+                throw new RuntimeException();
 
-        sessions.values().forEach(PlayerSession::sendUpdates);
-        observer.enemiesAppear(getEnemies());
+            sessions.values().forEach(PlayerSession::sendUpdates);
+            observer.enemiesAppear(monsterManager.getAllEnemies());
+        });
     }
 
-    public synchronized void removeObserver(String id) {
-        if (observers.remove(id) == null)
-            throw new RuntimeException();
+    public void removeObserver(String id) {
+        exclusive(() -> {
+            if (observers.remove(id) == null)
+                throw new RuntimeException();
+        });
     }
 }
@@ -0,0 +1,54 @@
+package soturi.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Enemies (or their ids) of one broadcast together with their slots in {@code MonsterManager},
+ * so that every session can match the whole batch against its visible slots with bitset operations.
+ * Items without a slot (already unregistered) are skipped.
+ */
+final class SlotBatch<T> {
+    private final List<T> items = new ArrayList<>();
+    private int[] slots = new int[16];
+    private final BitSet slotSet = new BitSet();
+
+    static <T> SlotBatch<T> of(List<T> items, int[] slots) {
+        SlotBatch<T> batch = new SlotBatch<>();
+        for (int i = 0; i < items.size(); ++i)
+            batch.add(items.get(i), slots[i]);
+        return batch;
+    }
+
+    void add(T item, int slot) {
+        if (slot < 0)
+            return;
+        if (items.size() == slots.length)
+            slots = Arrays.copyOf(slots, 2 * slots.length);
+        slots[items.size()] = slot;
+        items.add(item);
+        slotSet.set(slot);
+    }
+
+    boolean isEmpty() {
+        return items.isEmpty();
+    }
+    int size() {
+        return items.size();
+    }
+    T item(int i) {
+        return items.get(i);
+    }
+    int slot(int i) {
+        return slots[i];
+    }
+    List<T> items() {
+        return items;
+    }
+    /** Do not modify */
+    BitSet slotSet() {
+        return slotSet;
+    }
+}
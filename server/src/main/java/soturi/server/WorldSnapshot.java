@@ -0,0 +1,49 @@
+package soturi.server;
+
+import soturi.model.Enemy;
+import soturi.model.EnemyId;
+import soturi.model.PlayerWithPosition;
+import soturi.model.PolygonWithDifficulty;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable view of the world for read-only consumers (dashboard, website).
+ * Every mutation batch publishes a new snapshot with a higher version,
+ * which shares all untouched chunks of enemies and players with the previous one.
+ */
+public record WorldSnapshot(
+    long version,
+    ChunkedMap<EnemyId, Enemy> enemies,
+    ChunkedMap<String, PlayerWithPosition> players,
+    List<PolygonWithDifficulty> areas
+) {
+    private static final int enemyChunks = 1 << 10;
+    private static final int playerChunks = 1 << 4;
+
+    public static WorldSnapshot empty(List<PolygonWithDifficulty> areas) {
+        return new WorldSnapshot(0, ChunkedMap.empty(enemyChunks), ChunkedMap.empty(playerChunks), List.copyOf(areas));
+    }
+
+    public WorldSnapshot enemiesAppear(List<Enemy> appeared) {
+        Map<EnemyId, Enemy> puts = appeared.stream().collect(Collectors.toMap(Enemy::enemyId, Function.identity()));
+        return new WorldSnapshot(version + 1, enemies.with(puts, List.of()), players, areas);
+    }
+
+    /** Batch of changes collected since the last publication, each touched chunk is copied once */
+    public WorldSnapshot batchUpdate(List<EnemyId> disappeared, Map<String, PlayerWithPosition> updated) {
+        return new WorldSnapshot(version + 1, enemies.with(Map.of(), disappeared), players.with(updated, List.of()), areas);
+    }
+
+    public WorldSnapshot playerDisappears(String playerName) {
+        return new WorldSnapshot(version + 1, enemies, players.with(Map.of(), List.of(playerName)), areas);
+    }
+
+    /** New config layout, enemies that did not survive the migration disappear in the same version */
+    public WorldSnapshot withAreas(List<PolygonWithDifficulty> newAreas, List<EnemyId> disappeared) {
+        return new WorldSnapshot(version + 1, enemies.with(Map.of(), disappeared), players, List.copyOf(newAreas));
+    }
+}
@@ -4,9 +4,10 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpHeaders;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
+import soturi.common.BinaryCodec;
 import soturi.common.VersionInfo;
+import soturi.common.WireFormat;
 import soturi.model.Position;
 import soturi.model.messages_to_client.Disconnect;
 import soturi.model.messages_to_client.EnemiesAppear;
@@ -33,6 +34,10 @@ public class Connection {
     private final WebSocketSession session;
     private final GameService gameService;
     private final ObjectMapper objectMapper;
+    private final EncodedFrameCache frames;
+    private final WireFormat wireFormat;
+    /** Dictionaries of binary frames in both directions, guarded by the session monitor */
+    private final BinaryCodec codec = new BinaryCodec();
 
     private final BlockingQueue<MessageToClient> queue = new LinkedBlockingQueue<>();
 
@@ -64,11 +69,12 @@ public class Connection {
         return userTime.isBefore(serverTime);
     }
 
-    public Connection(WebSocketSession session, GameService gameService, ObjectMapper objectMapper) {
+    public Connection(WebSocketSession session, GameService gameService, ObjectMapper objectMapper, EncodedFrameCache frames) {
         synchronized (session) {
             this.session = session;
             this.gameService = gameService;
             this.objectMapper = objectMapper;
+            this.frames = frames;
 
             HttpHeaders headers = session.getHandshakeHeaders();
 
@@ -77,11 +83,13 @@ public class Connection {
             String latitude = headers.getFirst("epic-latitude");
             String longitude = headers.getFirst("epic-longitude");
             String compilationTime = headers.getFirst("epic-version");
+            String configHash = headers.getFirst("epic-config-hash");
+            wireFormat = WireFormat.fromHeader(headers.getFirst(WireFormat.header));
 
             Position position = positionFromStrings(latitude, longitude);
             MessageToClientHandler handler = new MessageToClientFactory(queue::add);
 
-            if (gameService.login(user, password, position, handler))
+            if (gameService.login(user, password, position, handler, configHash))
                 authorizedUser = user;
             else
                 scheduleToClose();
@@ -113,19 +121,28 @@ public class Connection {
         }
     }
 
+    private boolean acceptsMessages() {
+        if (closed)
+            return false;
+        if (authorizedUser == null) {
+            scheduleToClose();
+            return false;
+        }
+        lastReceived = Instant.now();
+        return true;
+    }
+
+    private void process(MessageToServer messageToServer) {
+        log.info("[FROM] {} [MSG] {}", authorizedUser, messageToServer);
+        messageToServer.process(gameService.receiveFrom(authorizedUser));
+    }
+
     public void handleTextMessage(String message) {
         synchronized (session) {
-            if (closed)
-                return;
-            if (authorizedUser == null) {
-                scheduleToClose();
+            if (!acceptsMessages())
                 return;
-            }
-            lastReceived = Instant.now();
             try {
-                MessageToServer messageToServer = objectMapper.readValue(message, MessageToServer.class);
-                log.info("[FROM] {} [MSG] {}", authorizedUser, messageToServer);
-                messageToServer.process(gameService.receiveFrom(authorizedUser));
+                process(objectMapper.readValue(message, MessageToServer.class));
             }
             catch (JsonProcessingException jsonProcessingException) {
                 log.error("user thinks he is funny", jsonProcessingException);
@@ -134,6 +151,24 @@ public class Connection {
         }
     }
 
+    /** Clients may send binary frames whatever format they asked for */
+    public void handleBinaryMessage(byte[] frame) {
+        synchronized (session) {
+            if (!acceptsMessages())
+                return;
+            MessageToServer messageToServer;
+            try {
+                messageToServer = codec.decodeToServer(frame);
+            }
+            catch (RuntimeException malformed) {
+                log.error("user thinks he is funny", malformed);
+                close();
+                return;
+            }
+            process(messageToServer);
+        }
+    }
+
     private void doSendMessage(MessageToClient messageToClient) {
         synchronized (session) {
             if (closed || messageToClient instanceof Disconnect) {
@@ -152,8 +187,10 @@ public class Connection {
                 log.info("[ TO ] {} [MSG] {}", authorizedUser, messageToClient);
 
             try {
-                String payload = objectMapper.writeValueAsString(messageToClient);
-                session.sendMessage(new TextMessage(payload));
+                if (wireFormat == WireFormat.BINARY)
+                    session.sendMessage(frames.binary(messageToClient, codec));
+                else
+                    session.sendMessage(frames.json(messageToClient));
             }
             catch (JsonProcessingException jsonProcessingException) {
                 log.error("this should not happen", jsonProcessingException);
@@ -0,0 +1,163 @@
+package soturi.server.communication;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import soturi.common.BinaryCodec;
+import soturi.model.messages_to_client.ConfigDelta;
+import soturi.model.messages_to_client.EnemiesAppear;
+import soturi.model.messages_to_client.EnemiesDisappear;
+import soturi.model.messages_to_client.FightDashboardInfo;
+import soturi.model.messages_to_client.MessageToClient;
+import soturi.model.messages_to_client.PlayerDisappears;
+import soturi.model.messages_to_client.PlayerUpdate;
+import soturi.model.messages_to_client.SetConfig;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Frames of recently sent broadcast messages. {@link soturi.server.GameService} hands the same payload
+ * to many sessions and observers (each one gets its own message instance), all of them share one serialized payload
+ * per wire format. Messages are matched by the identity of their components, so a lookup never walks
+ * a large payload and equal payloads of different broadcasts are encoded again. Frames are kept only
+ * for {@link #timeToLive}, long enough for the recipients of one broadcast.
+ * Messages addressed to a single recipient are serialized directly, so are binary frames
+ * that depend on the string dictionary of their connection.
+ * <p>
+ * This class is thread safe
+ */
+@Component
+public class EncodedFrameCache {
+    private static final int capacity = 64;
+    private static final Duration timeToLive = Duration.ofSeconds(2);
+    private static final Set<Class<? extends MessageToClient>> broadcasts = Set.of(
+        EnemiesAppear.class, EnemiesDisappear.class, PlayerUpdate.class, PlayerDisappears.class,
+        FightDashboardInfo.class, ConfigDelta.class, SetConfig.class
+    );
+
+    /** Components of a broadcast compared by identity */
+    private record Key(Class<?> type, Object[] components) {
+        static Key of(MessageToClient message) {
+            Object[] components;
+            if (message instanceof EnemiesAppear appear)
+                components = new Object[] { appear.enemies() };
+            else if (message instanceof EnemiesDisappear disappear)
+                components = new Object[] { disappear.enemyIds() };
+            else if (message instanceof PlayerUpdate update)
+                components = new Object[] { update.player(), update.position() };
+            else if (message instanceof PlayerDisappears disappears)
+                components = new Object[] { disappears.playerName() };
+            else if (message instanceof FightDashboardInfo info)
+                components = new Object[] { info.fightRecord() };
+            else if (message instanceof ConfigDelta delta)
+                components = new Object[] { delta.baseHash(), delta.hash(), delta.sections() };
+            else if (message instanceof SetConfig setConfig)
+                components = new Object[] { setConfig.config() };
+            else
+                throw new RuntimeException("not a broadcast " + message.getClass());
+            return new Key(message.getClass(), components);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key key) || type != key.type || components.length != key.components.length)
+                return false;
+            for (int i = 0; i < components.length; ++i)
+                if (components[i] != key.components[i])
+                    return false;
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = type.hashCode();
+            for (Object component : components)
+                hash = 31 * hash + System.identityHashCode(component);
+            return hash;
+        }
+    }
+
+    private record Cached<F>(FutureTask<F> frame, Instant expires) { }
+
+    /** Pending frames are cached too, so that concurrent senders of the same message wait for a single encoding */
+    private static final class Recent<F> {
+        /** In insertion order, so expired entries are at the front */
+        private final Map<Key, Cached<F>> frames = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Cached<F>> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        F get(MessageToClient message, Callable<F> encoder) throws JsonProcessingException {
+            Key key = Key.of(message);
+            Instant now = Instant.now();
+            FutureTask<F> mine = new FutureTask<>(encoder), frame;
+            synchronized (frames) {
+                Iterator<Cached<F>> eldest = frames.values().iterator();
+                while (eldest.hasNext() && eldest.next().expires.isBefore(now))
+                    eldest.remove();
+                Cached<F> entry = frames.putIfAbsent(key, new Cached<>(mine, now.plus(timeToLive)));
+                frame = entry == null ? mine : entry.frame;
+            }
+            if (frame == mine)
+                mine.run();
+
+            try {
+                return frame.get();
+            }
+            catch (ExecutionException exception) {
+                synchronized (frames) {
+                    Cached<F> entry = frames.get(key);
+                    if (entry != null && entry.frame == frame)
+                        frames.remove(key);
+                }
+                if (exception.getCause() instanceof JsonProcessingException jsonProcessingException)
+                    throw jsonProcessingException;
+                if (exception.getCause() instanceof RuntimeException runtimeException)
+                    throw runtimeException;
+                throw new RuntimeException(exception.getCause());
+            }
+            catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(interruptedException);
+            }
+        }
+    }
+
+    private final ObjectMapper mapper;
+    private final Recent<TextMessage> json = new Recent<>();
+    private final Recent<byte[]> binary = new Recent<>();
+
+    public EncodedFrameCache(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    private TextMessage encodeJson(MessageToClient message) throws JsonProcessingException {
+        return new TextMessage(mapper.writeValueAsBytes(message));
+    }
+
+    public TextMessage json(MessageToClient message) throws JsonProcessingException {
+        if (!broadcasts.contains(message.getClass()))
+            return encodeJson(message);
+        return json.get(message, () -> encodeJson(message));
+    }
+
+    /** @param codec codec of the receiving connection, has to be guarded by the caller */
+    public BinaryMessage binary(MessageToClient message, BinaryCodec codec) throws JsonProcessingException {
+        if (!broadcasts.contains(message.getClass()) || BinaryCodec.usesDictionary(message))
+            return new BinaryMessage(codec.encode(message));
+        // every send gets its own buffer over the shared bytes, containers consume the buffer position
+        return new BinaryMessage(binary.get(message, () -> new BinaryCodec().encode(message)));
+    }
+}
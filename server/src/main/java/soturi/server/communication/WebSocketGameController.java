@@ -4,24 +4,28 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 import soturi.server.GameService;
 
+import java.nio.ByteBuffer;
+
 @Slf4j
 @AllArgsConstructor
 @Component
-public class WebSocketGameController extends TextWebSocketHandler {
+public class WebSocketGameController extends AbstractWebSocketHandler {
     private final ObjectMapper mapper;
     private final GameService gameService;
+    private final EncodedFrameCache frames;
 
     private Connection getConnection(WebSocketSession session) {
         synchronized (session) {
             return (Connection) session.getAttributes().computeIfAbsent(
                 "epic-connection",
-                ignored -> new Connection(session, gameService, mapper)
+                ignored -> new Connection(session, gameService, mapper, frames)
             );
         }
     }
@@ -40,6 +44,16 @@ public class WebSocketGameController extends TextWebSocketHandler {
         }
     }
 
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage binaryMessage) {
+        ByteBuffer payload = binaryMessage.getPayload();
+        byte[] frame = new byte[payload.remaining()];
+        payload.get(frame);
+        synchronized (session) {
+            getConnection(session).handleBinaryMessage(frame);
+        }
+    }
+
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
         synchronized (session) {
@@ -58,6 +58,19 @@ public class PlayerEntity {
         setHashedPassword(hashedPassword);
     }
 
+    /** Detached copy with the same id, later changes of this entity (including its lists) do not show in it */
+    public PlayerEntity copy() {
+        PlayerEntity copy = new PlayerEntity(name, hashedPassword);
+        copy.id = id;
+        copy.hashingAlgorithm = hashingAlgorithm;
+        copy.xp = xp;
+        copy.hp = hp;
+        copy.role = role;
+        copy.equipped = List.copyOf(equipped);
+        copy.inventory = List.copyOf(inventory);
+        return copy;
+    }
+
     public boolean hasPassword(String password) {
         if ("BCRYPT".equals(hashingAlgorithm))
             return BCrypt.checkpw(password, hashedPassword);
@@ -0,0 +1,166 @@
+package soturi.server.database;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * In-memory entities of logged in players are authoritative, changes are only marked as dirty here
+ * and written to the database in batches every {@code soturi.write-behind-flush-interval-ms}.
+ * Until a write succeeds the database row may be stale, logins have to look at {@link #unsaved} first.
+ * <p>
+ * Live entities are mutated by their sessions while a batch is written, so only copies taken by {@link #markDirty}
+ * ever leave the caller, the latest copy of a player replaces the previous one that was not written yet.
+ * Batches may reach {@link #write} out of order (a logout overtaking a scheduled flush), so every copy has a version
+ * and a copy older than the last one written for its player is never written.
+ * <p>
+ * This class is thread safe
+ */
+@Slf4j
+@Component
+public class PlayerWriteBehind {
+    private final PlayerRepository repository;
+
+    /**
+     * {@code entity} is a copy that is never mutated, {@code version} grows with every mark,
+     * {@code since} is when the oldest unwritten change was marked
+     */
+    public record Dirty(PlayerEntity entity, long version, Instant since) { }
+    private final Map<String, Dirty> dirty = new LinkedHashMap<>();
+    /** Entities taken out of {@link #dirty} whose write has not finished yet, guarded by the monitor of {@link #dirty} */
+    private final Map<String, PlayerEntity> writing = new HashMap<>();
+    /** Guarded by the monitor of {@link #dirty} */
+    private long lastVersion;
+    /** Version of the last copy written for every player, guarded by this */
+    private final Map<String, Long> writtenVersions = new HashMap<>();
+
+    public record Stats(long flushes, long flushedRows, int pendingRows,
+                        int lastBatchSize, int maxBatchSize, long lastFlushLagMillis, long maxFlushLagMillis) { }
+    private long flushes, flushedRows;
+    private int lastBatchSize, maxBatchSize;
+    private long lastFlushLagMillis, maxFlushLagMillis;
+
+    public PlayerWriteBehind(PlayerRepository repository) {
+        this.repository = repository;
+    }
+
+    /** Has to be called by the only thread that may currently change {@code entity}, e.g. under its session monitor */
+    public void markDirty(PlayerEntity entity) {
+        PlayerEntity copy = entity.copy();
+        Instant now = Instant.now();
+        synchronized (dirty) {
+            Dirty fresh = new Dirty(copy, ++lastVersion, now);
+            dirty.merge(entity.getName(), fresh, (previous, latest) -> new Dirty(latest.entity, latest.version, previous.since));
+        }
+    }
+
+    /** Copy of the latest state of the player that may not be in the database yet */
+    public Optional<PlayerEntity> unsaved(String playerName) {
+        synchronized (dirty) {
+            Dirty pending = dirty.get(playerName);
+            if (pending != null)
+                return Optional.of(pending.entity.copy());
+            return Optional.ofNullable(writing.get(playerName)).map(PlayerEntity::copy);
+        }
+    }
+
+    private List<Dirty> moveToWriting(List<Dirty> taken) {
+        for (Dirty d : taken) {
+            dirty.remove(d.entity.getName());
+            writing.put(d.entity.getName(), d.entity);
+        }
+        return taken;
+    }
+
+    /** Cheap, the taken state stays visible to {@link #unsaved} until {@link #write} stores it */
+    public List<Dirty> take(String playerName) {
+        synchronized (dirty) {
+            Dirty pending = dirty.get(playerName);
+            return pending == null ? List.of() : moveToWriting(List.of(pending));
+        }
+    }
+
+    private List<Dirty> takeAll() {
+        synchronized (dirty) {
+            return moveToWriting(new ArrayList<>(dirty.values()));
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${soturi.write-behind-flush-interval-ms:1000}")
+    public void flushAll() {
+        write(takeAll());
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        log.info("flushing player state before shutdown");
+        flushAll();
+    }
+
+    private boolean isOutdated(Dirty d) {
+        return d.version <= writtenVersions.getOrDefault(d.entity.getName(), 0L);
+    }
+
+    /** Writes are serialized, copies older than the last written ones are skipped, entries of a failed write become dirty again */
+    public synchronized void write(List<Dirty> taken) {
+        List<Dirty> batch = new ArrayList<>();
+        synchronized (dirty) {
+            for (Dirty d : taken) {
+                if (isOutdated(d))
+                    writing.remove(d.entity.getName(), d.entity);
+                else
+                    batch.add(d);
+            }
+        }
+        if (batch.isEmpty())
+            return;
+        Instant now = Instant.now();
+        long lag = batch.stream().mapToLong(d -> Duration.between(d.since, now).toMillis()).max().orElse(0);
+
+        try {
+            repository.saveAll(batch.stream().map(Dirty::entity).toList());
+        }
+        catch (RuntimeException exception) {
+            log.error("write-behind flush of {} players failed, retrying later", batch.size(), exception);
+            synchronized (dirty) {
+                // newer changes marked in the meantime win, but keep the age of the failed ones,
+                // a newer copy already taken for writing supersedes the failed one
+                for (Dirty d : batch)
+                    if (writing.remove(d.entity.getName(), d.entity))
+                        dirty.merge(d.entity.getName(), d, (newer, failed) -> new Dirty(newer.entity, newer.version, failed.since));
+            }
+            return;
+        }
+        synchronized (dirty) {
+            for (Dirty d : batch) {
+                writing.remove(d.entity.getName(), d.entity);
+                writtenVersions.put(d.entity.getName(), d.version);
+            }
+        }
+
+        flushes++;
+        flushedRows += batch.size();
+        lastBatchSize = batch.size();
+        maxBatchSize = Math.max(maxBatchSize, batch.size());
+        lastFlushLagMillis = lag;
+        maxFlushLagMillis = Math.max(maxFlushLagMillis, lag);
+    }
+
+    public synchronized Stats getStats() {
+        int pending;
+        synchronized (dirty) {
+            pending = dirty.size();
+        }
+        return new Stats(flushes, flushedRows, pending, lastBatchSize, maxBatchSize, lastFlushLagMillis, maxFlushLagMillis);
+    }
+}
@@ -3,5 +3,5 @@ package soturi.server.geo;
 import java.util.List;
 
 public interface CityProvider {
-    List<City> getCities();
+    List<City> getCities(List<String> countryCodes);
 }
@@ -0,0 +1,158 @@
+package soturi.server.geo;
+
+import soturi.model.Position;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Struct of arrays storage of enemies. Every enemy lives in a dense int slot, freed slots are reused.
+ * Enemies are linked into intrusive doubly linked lists per grid cell and counted per type,
+ * so that adding and removing an enemy is O(1) and allocates nothing once the arrays have grown.
+ * <p>
+ * This class is not thread safe
+ */
+final class EnemyStore {
+    private static final int none = -1;
+
+    private final Grid grid;
+    private final LongIntMap slotOfId = new LongIntMap();
+    private final LongIntMap cellHead = new LongIntMap();
+    private final int[] typeCount;
+
+    private long[] ids = new long[0];
+    private double[] latitudes = new double[0], longitudes = new double[0];
+    private int[] lvls = new int[0], types = new int[0], regions = new int[0];
+    private long[] cells = new long[0];
+    private int[] cellNext = new int[0], cellPrev = new int[0];
+
+    /** Slots {@code [0, slotLimit)} were used at some point, free ones are chained through {@code cellNext} */
+    private int slotLimit = 0, freeHead = none, size = 0;
+
+    EnemyStore(Grid grid, int typeCount) {
+        this.grid = grid;
+        this.typeCount = new int[typeCount];
+    }
+
+    private void grow() {
+        int capacity = Math.max(16, 2 * ids.length);
+        ids = Arrays.copyOf(ids, capacity);
+        latitudes = Arrays.copyOf(latitudes, capacity);
+        longitudes = Arrays.copyOf(longitudes, capacity);
+        lvls = Arrays.copyOf(lvls, capacity);
+        types = Arrays.copyOf(types, capacity);
+        regions = Arrays.copyOf(regions, capacity);
+        cells = Arrays.copyOf(cells, capacity);
+        cellNext = Arrays.copyOf(cellNext, capacity);
+        cellPrev = Arrays.copyOf(cellPrev, capacity);
+    }
+
+    private int allocateSlot() {
+        if (freeHead != none) {
+            int slot = freeHead;
+            freeHead = cellNext[slot];
+            return slot;
+        }
+        if (slotLimit == ids.length)
+            grow();
+        return slotLimit++;
+    }
+
+    /** @return slot of the new enemy */
+    int add(long id, int type, int lvl, double latitude, double longitude, int region) {
+        if (slotOfId.get(id) != none)
+            throw new RuntimeException("enemy " + id + " is already stored");
+        int slot = allocateSlot();
+        ids[slot] = id;
+        types[slot] = type;
+        lvls[slot] = lvl;
+        latitudes[slot] = latitude;
+        longitudes[slot] = longitude;
+        regions[slot] = region;
+        cells[slot] = grid.cellKeyOf(latitude, longitude);
+        slotOfId.put(id, slot);
+        size++;
+        typeCount[type]++;
+
+        int head = cellHead.get(cells[slot]);
+        cellPrev[slot] = none;
+        cellNext[slot] = head;
+        if (head != none)
+            cellPrev[head] = slot;
+        cellHead.put(cells[slot], slot);
+        return slot;
+    }
+
+    void remove(int slot) {
+        if (!isUsed(slot))
+            throw new RuntimeException("slot " + slot + " is free");
+        slotOfId.remove(ids[slot]);
+        size--;
+        typeCount[types[slot]]--;
+
+        if (cellPrev[slot] != none)
+            cellNext[cellPrev[slot]] = cellNext[slot];
+        else if (cellNext[slot] != none)
+            cellHead.put(cells[slot], cellNext[slot]);
+        else
+            cellHead.remove(cells[slot]);
+        if (cellNext[slot] != none)
+            cellPrev[cellNext[slot]] = cellPrev[slot];
+
+        types[slot] = none;
+        cellNext[slot] = freeHead;
+        freeHead = slot;
+    }
+
+    /** @return slot of enemy with {@code id} or -1 */
+    int slotOf(long id) {
+        return slotOfId.get(id);
+    }
+
+    int size() {
+        return size;
+    }
+    /** All used slots are below this bound */
+    int slotLimit() {
+        return slotLimit;
+    }
+    boolean isUsed(int slot) {
+        return 0 <= slot && slot < slotLimit && types[slot] != none;
+    }
+
+    long id(int slot) {
+        return ids[slot];
+    }
+    int type(int slot) {
+        return types[slot];
+    }
+    int lvl(int slot) {
+        return lvls[slot];
+    }
+    double latitude(int slot) {
+        return latitudes[slot];
+    }
+    double longitude(int slot) {
+        return longitudes[slot];
+    }
+    int region(int slot) {
+        return regions[slot];
+    }
+    Position position(int slot) {
+        return new Position(latitudes[slot], longitudes[slot]);
+    }
+
+    int countOfType(int type) {
+        return typeCount[type];
+    }
+
+    /**
+     * Passes slots of enemies in the cell with {@code key} (see {@link Grid#cellKey}) with {@code distance(position) < meters}
+     * to {@code consumer}, radius queries visit every cell of {@link Grid#cellRangeOf}
+     */
+    void queryCell(long key, Position position, double meters, IntConsumer consumer) {
+        for (int slot = cellHead.get(key); slot != none; slot = cellNext[slot])
+            if (position(slot).distance(position) < meters)
+                consumer.accept(slot);
+    }
+}
@@ -0,0 +1,64 @@
+package soturi.server.geo;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * Multiset of indices where index {@code i} appears {@code weight[i]} times, stored as a Fenwick tree.
+ * {@link #draw} removes and returns a uniformly random element in {@code O(log n)},
+ * so drawing until empty walks a uniformly random permutation of the multiset without materialising it.
+ * <p>
+ * This class is not thread safe.
+ */
+public class FenwickSampler {
+    private final long[] tree; // 1-based, tree[i] is a sum of weights in (i - lowbit(i), i]
+    private final int highestBit;
+    private long total;
+
+    public FenwickSampler(int[] weights) {
+        tree = new long[weights.length + 1];
+        for (int i = 1; i <= weights.length; ++i) {
+            tree[i] += Math.max(weights[i - 1], 0);
+            int parent = i + (i & -i);
+            if (parent <= weights.length)
+                tree[parent] += tree[i];
+            total += Math.max(weights[i - 1], 0);
+        }
+        highestBit = weights.length == 0 ? 0 : Integer.highestOneBit(weights.length);
+    }
+
+    public long total() {
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return total == 0;
+    }
+
+    /** {@code delta} must not make weight of {@code index} negative */
+    public void add(int index, long delta) {
+        total += delta;
+        for (int i = index + 1; i < tree.length; i += i & -i)
+            tree[i] += delta;
+    }
+
+    /** Smallest index whose prefix sum of weights exceeds {@code value} */
+    private int find(long value) {
+        int pos = 0;
+        for (int bit = highestBit; bit > 0; bit >>= 1) {
+            if (pos + bit < tree.length && tree[pos + bit] <= value) {
+                pos += bit;
+                value -= tree[pos];
+            }
+        }
+        return pos;
+    }
+
+    /** Removes one random element, every element of the multiset is equally likely */
+    public int draw(RandomGenerator rnd) {
+        if (isEmpty())
+            throw new RuntimeException("cannot draw from an empty sampler");
+        int index = find(rnd.nextLong(total));
+        add(index, -1);
+        return index;
+    }
+}
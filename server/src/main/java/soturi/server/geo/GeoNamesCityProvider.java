@@ -3,20 +3,31 @@ package soturi.server.geo;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
-import soturi.server.DynamicConfig;
+import soturi.model.Position;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -24,32 +35,62 @@ import java.util.zip.ZipInputStream;
 @Component
 public class GeoNamesCityProvider implements CityProvider {
     private final String geoNamesDownloadDir = "static";
-    private final DynamicConfig dynamicConfig;
-    private final List<City> cities = new ArrayList<>();
+    /** Immutable, replaced as a whole when codes change, so lists handed out earlier stay valid */
+    private List<City> cities = List.of();
     private List<String> lastCodes;
 
     @SneakyThrows(IOException.class)
-    public GeoNamesCityProvider(DynamicConfig dynamicConfig) {
-        this.dynamicConfig = dynamicConfig;
+    public GeoNamesCityProvider() {
         Files.createDirectories(Paths.get(geoNamesDownloadDir));
     }
 
-    private Path pathForCode(String code) {
+    /** Plain dump extracted by older versions, it is parsed instead of downloading again */
+    private Path legacyPathForCode(String code) {
         return Paths.get(geoNamesDownloadDir, code + "_GeoNames.txt");
     }
+    private Path cachePathForCode(String code) {
+        return Paths.get(geoNamesDownloadDir, code + "_cities.bin");
+    }
 
-    @SneakyThrows(IOException.class)
-    private void processCode(String code) {
+    private List<City> citiesForCode(String code) {
+        Path cachePath = cachePathForCode(code);
+        if (Files.exists(cachePath)) {
+            try {
+                return readCache(cachePath);
+            }
+            catch (IOException | RuntimeException exception) {
+                log.warn("City cache {} is unreadable, parsing again", cachePath, exception);
+            }
+        }
+
+        List<City> parsed = parseCode(code);
+        try {
+            writeCache(cachePath, parsed);
+        }
+        catch (IOException exception) {
+            log.warn("Cannot store city cache {}", cachePath, exception);
+        }
+        return parsed;
+    }
+
+    @SneakyThrows({URISyntaxException.class, IOException.class})
+    private List<City> parseCode(String code) {
         log.info("Processing code {}", code);
-        if (!Files.exists(pathForCode(code)))
-            downloadCode(code);
-        Files
-            .readAllLines(pathForCode(code))
-            .stream()
-            .map(GeoNamesEntry::parse)
-            .map(GeoNamesEntry::toCity)
-            .flatMap(Optional::stream)
-            .forEach(cities::add);
+        Path legacyPath = legacyPathForCode(code);
+        if (Files.exists(legacyPath)) {
+            try (BufferedReader reader = Files.newBufferedReader(legacyPath, StandardCharsets.UTF_8)) {
+                return GeoNamesParser.parse(reader);
+            }
+        }
+
+        log.info("Downloading data for code {}", code);
+        URL url = new URI("https://download.geonames.org/export/dump/%s.zip".formatted(code)).toURL();
+        URLConnection connection = url.openConnection();
+        try (ZipInputStream zipStream = new ZipInputStream(connection.getInputStream())) {
+            findZipEntry(code + ".txt", zipStream);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(zipStream, StandardCharsets.UTF_8), 1 << 16);
+            return GeoNamesParser.parse(reader);
+        }
     }
 
     @SneakyThrows(IOException.class)
@@ -62,25 +103,91 @@ public class GeoNamesCityProvider implements CityProvider {
         return entry;
     }
 
-    @SneakyThrows({URISyntaxException.class, IOException.class})
-    private void downloadCode(String code) {
-        log.info("Downloading data for code {}", code);
-        URL url = new URI("https://download.geonames.org/export/dump/%s.zip".formatted(code)).toURL();
-        URLConnection connection = url.openConnection();
-        try (ZipInputStream zipStream = new ZipInputStream(connection.getInputStream())) {
-            findZipEntry(code + ".txt", zipStream);
-            Files.copy(zipStream, pathForCode(code));
+    /*
+     * Cache is columnar: count, populations, latitudes, longitudes, then names as (length, utf8 bytes).
+     * Numeric columns are copied in bulk from the mapped file.
+     */
+    private static final int cacheMagic = 0x43495459; // "CITY"
+
+    public static void writeCache(Path path, List<City> cities) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(cacheMagic);
+            out.writeInt(cities.size());
+            for (City city : cities)
+                out.writeLong(city.population());
+            for (City city : cities)
+                out.writeDouble(city.position().latitude());
+            for (City city : cities)
+                out.writeDouble(city.position().longitude());
+            for (City city : cities) {
+                byte[] name = city.name().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static List<City> readCache(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != cacheMagic)
+                throw new RuntimeException("not a city cache");
+            int n = in.getInt();
+
+            long[] populations = new long[n];
+            double[] latitudes = new double[n], longitudes = new double[n];
+            in.asLongBuffer().get(populations);
+            in.position(in.position() + 8 * n);
+            in.asDoubleBuffer().get(latitudes);
+            in.position(in.position() + 8 * n);
+            in.asDoubleBuffer().get(longitudes);
+            in.position(in.position() + 8 * n);
+
+            List<City> cities = new ArrayList<>(n);
+            for (int i = 0; i < n; ++i) {
+                byte[] name = new byte[in.getInt()];
+                in.get(name);
+                Position position = new Position(latitudes[i], longitudes[i]);
+                cities.add(new City(new String(name, StandardCharsets.UTF_8), populations[i], position));
+            }
+            return cities;
+        }
+    }
+
+    /**
+     * Every code is processed on its own virtual thread. Downloads block, so they must not take workers
+     * of the common fork-join pool, which builds regions and generates enemies
+     */
+    @SneakyThrows(InterruptedException.class)
+    private List<City> citiesForCodes(List<String> codes) {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<List<City>>> futures = new ArrayList<>();
+            for (String code : codes)
+                futures.add(executor.submit(() -> citiesForCode(code)));
+
+            List<City> result = new ArrayList<>();
+            for (Future<List<City>> future : futures) {
+                try {
+                    result.addAll(future.get());
+                }
+                catch (ExecutionException exception) {
+                    throw new RuntimeException("cannot load cities", exception.getCause());
+                }
+            }
+            return List.copyOf(result);
         }
     }
 
+    /** Cities are kept in the order of codes */
     @Override
-    public List<City> getCities() {
-        List<String> newCodes = dynamicConfig.getRegistry().getCountryCodes();
-        if (!newCodes.equals(lastCodes)) {
-            cities.clear();
-            lastCodes = newCodes;
-            lastCodes.forEach(this::processCode);
+    public synchronized List<City> getCities(List<String> countryCodes) {
+        if (!countryCodes.equals(lastCodes)) {
+            List<String> codes = List.copyOf(countryCodes);
+            cities = citiesForCodes(codes);
+            lastCodes = codes;
         }
-        return Collections.unmodifiableList(cities);
+        return cities;
     }
 }
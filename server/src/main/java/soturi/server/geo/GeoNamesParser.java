@@ -0,0 +1,81 @@
+package soturi.server.geo;
+
+import soturi.model.Position;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming parser of GeoNames dumps, every line has 19 tab separated fields described in readme.txt
+ * contained in any GeoNames zip file. Only populated places (feature class {@code P}) with positive
+ * population are turned into cities, other lines are rejected before any field is copied.
+ */
+public class GeoNamesParser {
+    private static final int asciiNameField = 2;     // name of geographical point in plain ascii characters, varchar(200)
+    private static final int latitudeField = 4;      // latitude in decimal degrees (wgs84)
+    private static final int longitudeField = 5;     // longitude in decimal degrees (wgs84)
+    private static final int featureClassField = 6;  // see http://www.geonames.org/export/codes.html, char(1)
+    private static final int populationField = 14;   // bigint (8 byte int)
+    private static final int fieldCount = 19;
+
+    private final int[] fieldStart = new int[fieldCount + 1];
+
+    public static List<City> parse(BufferedReader reader) throws IOException {
+        GeoNamesParser parser = new GeoNamesParser();
+        List<City> cities = new ArrayList<>();
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            City city = parser.parseLine(line);
+            if (city != null)
+                cities.add(city);
+        }
+        return cities;
+    }
+
+    /** Returns {@code null} for lines that are not populated places */
+    City parseLine(String line) {
+        int fields = 0;
+        fieldStart[fields++] = 0;
+        for (int i = 0; i < line.length() && fields <= fieldCount; ++i)
+            if (line.charAt(i) == '\t')
+                fieldStart[fields++] = i + 1;
+        if (fields < fieldCount)
+            throw new RuntimeException("GeoNames line has " + fields + " fields: " + line);
+        if (fields == fieldCount)
+            fieldStart[fields] = line.length() + 1;
+
+        if (fieldLength(featureClassField) != 1 || line.charAt(fieldStart[featureClassField]) != 'P')
+            return null;
+        long population = parseLong(line, populationField);
+        if (population <= 0)
+            return null;
+
+        double latitude = Double.parseDouble(field(line, latitudeField));
+        double longitude = Double.parseDouble(field(line, longitudeField));
+        return new City(field(line, asciiNameField), population, new Position(latitude, longitude));
+    }
+
+    private int fieldLength(int field) {
+        return fieldStart[field + 1] - 1 - fieldStart[field];
+    }
+
+    private String field(String line, int field) {
+        return line.substring(fieldStart[field], fieldStart[field + 1] - 1);
+    }
+
+    private long parseLong(String line, int field) {
+        int from = fieldStart[field], to = fieldStart[field + 1] - 1;
+        if (from == to)
+            return 0;
+        long value = 0;
+        boolean negative = line.charAt(from) == '-';
+        for (int i = negative ? from + 1 : from; i < to; ++i) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9')
+                throw new RuntimeException("not a number in field " + field + ": " + line);
+            value = 10 * value + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,79 @@
+package soturi.server.geo;
+
+import soturi.model.Position;
+import soturi.model.Rectangle;
+
+/**
+ * Uniform grid over {@code envelope} with cells roughly {@code cellSizeInMeters} wide.
+ * Positions outside the envelope fall into the nearest border cell.
+ * <p>
+ * This class is immutable and thread safe
+ */
+final class Grid {
+    private static final double earthRadius = 6371 * 1000;
+    private static final int maxCellsPerSide = 1 << 16;
+
+    private final Rectangle envelope;
+    private final int latCells, lonCells;
+
+    Grid(Rectangle envelope, double cellSizeInMeters) {
+        this.envelope = envelope;
+
+        double centerLatitude = envelope.getCenter().latitude();
+        double height = new Position(envelope.lowerLatitude(), envelope.lowerLongitude())
+            .distance(new Position(envelope.upperLatitude(), envelope.lowerLongitude()));
+        double width = new Position(centerLatitude, envelope.lowerLongitude())
+            .distance(new Position(centerLatitude, envelope.upperLongitude()));
+
+        latCells = cellsFor(height, cellSizeInMeters);
+        lonCells = cellsFor(width, cellSizeInMeters);
+    }
+
+    private static int cellsFor(double lengthInMeters, double cellSizeInMeters) {
+        double cells = Math.ceil(lengthInMeters / cellSizeInMeters);
+        return (int) Math.max(1, Math.min(cells, maxCellsPerSide));
+    }
+
+    private static int cellIdOf(double value, double lower, double upper, int n) {
+        if (upper <= lower)
+            return 0;
+        double d = (value - lower) / (upper - lower) * n;
+        return (int) Math.max(0, Math.min(d, n - 1));
+    }
+    int latitudeIdOf(double latitude) {
+        return cellIdOf(latitude, envelope.lowerLatitude(), envelope.upperLatitude(), latCells);
+    }
+    int longitudeIdOf(double longitude) {
+        return cellIdOf(longitude, envelope.lowerLongitude(), envelope.upperLongitude(), lonCells);
+    }
+    long cellKey(int i, int j) {
+        return (long) i * lonCells + j;
+    }
+    long cellKeyOf(double latitude, double longitude) {
+        return cellKey(latitudeIdOf(latitude), longitudeIdOf(longitude));
+    }
+    /** Key of the block of {@code cellsPerTile x cellsPerTile} cells that contains the cell */
+    long tileKeyOf(long cellKey, int cellsPerTile) {
+        int i = (int) (cellKey / lonCells), j = (int) (cellKey % lonCells);
+        int tilesPerRow = (lonCells + cellsPerTile - 1) / cellsPerTile;
+        return (long) (i / cellsPerTile) * tilesPerRow + j / cellsPerTile;
+    }
+
+    /** Inclusive cell ranges {@code {latL, latR, lonL, lonR}} covering the circle */
+    int[] cellRangeOf(Position position, double meters) {
+        // bounding box of the circle, longitude span is taken at the latitude furthest from the equator
+        double dLat = Math.toDegrees(meters / earthRadius);
+        double furthestLatitude = Math.min(Position.maxLatitude, Math.abs(position.latitude()) + dLat);
+        double cos = Math.cos(Math.toRadians(furthestLatitude));
+        double dLon = cos <= 0 ? Position.maxLongitude : Math.toDegrees(meters / (earthRadius * cos));
+
+        return new int[] {
+            latitudeIdOf(position.latitude() - dLat), latitudeIdOf(position.latitude() + dLat),
+            longitudeIdOf(position.longitude() - dLon), longitudeIdOf(position.longitude() + dLon)
+        };
+    }
+
+    static long cellCount(int[] range) {
+        return (long) (range[1] - range[0] + 1) * (range[3] - range[2] + 1);
+    }
+}
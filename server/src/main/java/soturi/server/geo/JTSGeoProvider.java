@@ -4,22 +4,101 @@ import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryCollection;
 import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.MultiPoint;
 import org.locationtech.jts.geom.Polygon;
-import org.locationtech.jts.shape.random.RandomPointsBuilder;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.triangulate.polygon.PolygonTriangulator;
 import org.springframework.stereotype.Component;
 import soturi.common.GeoProvider;
 import soturi.model.Position;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+/**
+ * This class is thread safe
+ */
 @Component
 public class JTSGeoProvider implements GeoProvider {
     private final GeometryFactory geometryFactory = new GeometryFactory();
 
+    /**
+     * Polygons of a {@link soturi.common.Registry} are the same instances for its whole lifetime,
+     * so they are cached by identity, which avoids hashing all points on every lookup.
+     * When the cache grows too big, e.g. after many config reloads, the least recently used quarter is evicted.
+     * Recency is counted in cache misses, so hits of polygons shared by all threads (game area) rarely write.
+     */
+    private static final int maxCachedPolygons = 1 << 12;
+    private record IdentityKey(soturi.model.Polygon poly) {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof IdentityKey key && key.poly == poly;
+        }
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(poly);
+        }
+    }
+    private static class Prepared {
+        final Polygon polygon;
+        final PreparedGeometry prepared;
+        private volatile TriangleSampler sampler;
+        /** Value of the miss counter at the last use */
+        volatile long lastUsed;
+
+        Prepared(Polygon polygon) {
+            this.polygon = polygon;
+            this.prepared = PreparedGeometryFactory.prepare(polygon);
+        }
+
+        /** Triangulation is built lazily, only polygons used for spawning need it */
+        TriangleSampler sampler() {
+            TriangleSampler result = sampler;
+            if (result == null)
+                sampler = result = new TriangleSampler(polygon);
+            return result;
+        }
+    }
+    private final Map<IdentityKey, Prepared> preparedCache = new ConcurrentHashMap<>();
+    private final AtomicLong misses = new AtomicLong();
+    private final Object evictionLock = new Object();
+
+    private Prepared prepared(soturi.model.Polygon poly) {
+        Prepared cached = preparedCache.get(new IdentityKey(poly));
+        if (cached != null) {
+            long now = misses.get();
+            if (cached.lastUsed != now)
+                cached.lastUsed = now;
+            return cached;
+        }
+        Prepared prepared = new Prepared(convertToJTS(poly));
+        prepared.lastUsed = misses.incrementAndGet();
+        preparedCache.put(new IdentityKey(poly), prepared);
+        if (preparedCache.size() > maxCachedPolygons)
+            evictLeastRecentlyUsed();
+        return prepared;
+    }
+
+    private void evictLeastRecentlyUsed() {
+        synchronized (evictionLock) {
+            if (preparedCache.size() <= maxCachedPolygons)
+                return;
+            List<Map.Entry<IdentityKey, Prepared>> entries = new ArrayList<>(preparedCache.entrySet());
+            entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastUsed));
+            for (Map.Entry<IdentityKey, Prepared> entry : entries.subList(0, entries.size() - maxCachedPolygons * 3 / 4))
+                preparedCache.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
     private Polygon convertToJTS(soturi.model.Polygon p) {
         Stream<Coordinate> coords = p.points().stream().map(this::convertToJTS);
         Stream<Coordinate> closed = Stream.concat(coords, Stream.of(convertToJTS(p.points().get(0))));
@@ -60,6 +139,47 @@ public class JTSGeoProvider implements GeoProvider {
         return convertFromJTS(ax.intersection(bx));
     }
 
+    @Override
+    public List<soturi.model.Polygon> difference(soturi.model.Polygon poly, List<soturi.model.Polygon> subtracted) {
+        Geometry result = convertToJTS(poly);
+        for (soturi.model.Polygon other : subtracted) {
+            Polygon otherX = prepared(other).polygon;
+            if (result.getEnvelopeInternal().intersects(otherX.getEnvelopeInternal()))
+                result = result.difference(otherX);
+        }
+        return convertFromJTS(splitHoles(result));
+    }
+
+    /** Polygons with holes cannot be represented by soturi.model.Polygon, they are replaced by their triangles */
+    private Geometry splitHoles(Geometry g) {
+        List<Geometry> parts = new ArrayList<>();
+        for (int i = 0; i < g.getNumGeometries(); ++i) {
+            Geometry part = g.getGeometryN(i);
+            if (part instanceof Polygon p && p.getNumInteriorRing() > 0)
+                parts.add(PolygonTriangulator.triangulate(p));
+            else
+                parts.add(part);
+        }
+        return dropDegenerate(geometryFactory.buildGeometry(parts));
+    }
+
+    private Geometry dropDegenerate(Geometry g) {
+        List<Geometry> parts = new ArrayList<>();
+        for (int i = 0; i < g.getNumGeometries(); ++i) {
+            Geometry part = g.getGeometryN(i);
+            if (part instanceof GeometryCollection)
+                part = dropDegenerate(part);
+            if (part.getArea() > 0)
+                parts.add(part);
+        }
+        return geometryFactory.buildGeometry(parts);
+    }
+
+    @Override
+    public List<soturi.model.Polygon> triangulate(soturi.model.Polygon poly) {
+        return convertFromJTS(dropDegenerate(PolygonTriangulator.triangulate(convertToJTS(poly))));
+    }
+
     @Override
     public boolean isEmpty(soturi.model.Polygon poly) {
         return convertToJTS(poly).isEmpty();
@@ -72,16 +192,17 @@ public class JTSGeoProvider implements GeoProvider {
 
     @Override
     public boolean isInside(soturi.model.Polygon poly, Position position) {
-        return convertToJTS(poly).contains(geometryFactory.createPoint(convertToJTS(position)));
+        return prepared(poly).prepared.contains(geometryFactory.createPoint(convertToJTS(position)));
     }
 
     @Override
     public Position randomPoint(soturi.model.Polygon poly) {
-        RandomPointsBuilder randomPointsBuilder = new RandomPointsBuilder(geometryFactory);
-        randomPointsBuilder.setExtent(convertToJTS(poly));
-        randomPointsBuilder.setNumPoints(1);
-        MultiPoint multiPoint = (MultiPoint) randomPointsBuilder.getGeometry();
-        return convertFromJTS(multiPoint.getCoordinates()[0]);
+        return prepared(poly).sampler().randomPoint(ThreadLocalRandom.current());
+    }
+
+    @Override
+    public Position randomPoint(soturi.model.Polygon poly, Random rnd) {
+        return prepared(poly).sampler().randomPoint(rnd);
     }
 
     @Override
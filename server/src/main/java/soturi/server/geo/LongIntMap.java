@@ -0,0 +1,99 @@
+package soturi.server.geo;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing {@code long -> int} map with linear probing and backward shift deletion,
+ * no boxing and no per entry objects. Values have to be non-negative, {@link #get} returns -1 for missing keys.
+ * <p>
+ * This class is not thread safe
+ */
+final class LongIntMap {
+    private static final int free = -1;
+
+    private long[] keys;
+    private int[] values; // free marks an empty bucket
+    private int size;
+
+    LongIntMap() {
+        keys = new long[16];
+        values = new int[16];
+        Arrays.fill(values, free);
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int bucketOf(long key) {
+        int mask = keys.length - 1;
+        int b = mix(key) & mask;
+        while (values[b] != free && keys[b] != key)
+            b = (b + 1) & mask;
+        return b;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(long key) {
+        return values[bucketOf(key)];
+    }
+
+    /** @return previous value or -1 */
+    int put(long key, int value) {
+        if (value < 0)
+            throw new RuntimeException("negative value " + value);
+        if (2 * (size + 1) > keys.length)
+            rehash(2 * keys.length);
+
+        int b = bucketOf(key);
+        int previous = values[b];
+        if (previous == free)
+            size++;
+        keys[b] = key;
+        values[b] = value;
+        return previous;
+    }
+
+    /** @return removed value or -1 */
+    int remove(long key) {
+        int mask = keys.length - 1;
+        int b = bucketOf(key);
+        int removed = values[b];
+        if (removed == free)
+            return free;
+        size--;
+
+        // shift back following entries of the cluster that would not be found otherwise
+        for (int next = (b + 1) & mask; values[next] != free; next = (next + 1) & mask) {
+            int home = mix(keys[next]) & mask;
+            boolean reachable = b <= next ? (b < home && home <= next) : (b < home || home <= next);
+            if (reachable)
+                continue;
+            keys[b] = keys[next];
+            values[b] = values[next];
+            b = next;
+        }
+        values[b] = free;
+        return removed;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, free);
+
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldValues[i] == free)
+                continue;
+            int b = bucketOf(oldKeys[i]);
+            keys[b] = oldKeys[i];
+            values[b] = oldValues[i];
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package soturi.server.geo;
 
-import lombok.With;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.mutable.MutableInt;
 import soturi.common.Registry;
 import soturi.model.DifficultyLvl;
 import soturi.model.Enemy;
@@ -16,37 +14,98 @@ import soturi.model.Rectangle;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Random;
-import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjIntConsumer;
 import java.util.function.Supplier;
 import java.util.stream.IntStream;
 
+/**
+ * The world is owned by shards: the enemy grid is cut into square tiles of {@link #cellsPerTile} cells per side,
+ * every tile belongs to one shard and each shard keeps the enemies of its tiles in its own {@link EnemyStore},
+ * guarded by the monitor of that store. A tile is a few visibility ranges wide, so the enemies around one city
+ * are owned by one or a few shards, while distant cities usually land in different ones. Enemies never move,
+ * so they stay with their shard for their whole life. Sessions are owned by the shard of their interest anchor
+ * (see {@link #shardOfAnchor}) and are handed off when they move to a tile of another shard.
+ * <p>
+ * Queries that cross shard borders (radius queries, interest diffs, listing all enemies) visit the shards
+ * one at a time and never hold two shard monitors at once. Ids are mapped to shards by a striped index,
+ * a stripe monitor is always taken before a shard one. Caps of regions are atomic, since a region may span
+ * tiles of many shards.
+ * <p>
+ * This class is thread safe
+ */
 @Slf4j
 public class MonsterManager {
-    private final Registry registry;
+    private volatile Registry registry;
     private final Supplier<EnemyId> enemyIdSupplier;
 
-    private final List<PolygonWithDifficulty> areasWithDifficulties = new ArrayList<>();
+    private final List<PolygonWithDifficulty> areasWithDifficulties;
     private final Region[] regions;
 
-    private final int[][] regionIdOf;
+    /**
+     * Quadtree over the {@code 2**splitLvl} grid, {@code regionTree[4 * node + quadrant]} is either a child node
+     * or a leaf encoded as {@code -(regionId + 1)}. Quadrant is {@code 2 * latitudeHalf + longitudeHalf}
+     */
+    private final int[] regionTree;
+    private final int regionTreeRoot;
     private final Rectangle fullEnvelope;
 
-    private final Map<EnemyId, Enemy> enemies = new LinkedHashMap<>();
-    private final Map<EnemyTypeId, Set<EnemyId>> enemiesPerType = new LinkedHashMap<>();
-
-    record Region(Rectangle rectangle, List<EnemyId> enemiesHere, int difficulty, MutableInt capLeft) {
+    /** Enemy types are stored in {@link EnemyStore} by their index in {@link Registry#getAllEnemyTypes} */
+    private final EnemyTypeId[] typeIds;
+    private final Map<EnemyTypeId, Integer> typeIndexOf = new HashMap<>();
+    /** Cells of the enemy grid are this many times narrower than the visibility range */
+    private static final int cellsPerVisibilityRange = 4;
+    private final Grid grid;
+
+    /** Tiles are this many visibility ranges wide */
+    private static final int cellsPerTile = 4 * cellsPerVisibilityRange;
+
+    /**
+     * Global slot of an enemy is {@code localSlot * shardCount + shard}. Tiles are spread over shards by hash,
+     * so shards fill up about evenly and global slots stay not much sparser than the slots of a single store
+     */
+    public static final int shardCount = 16;
+    private static final int idStripeCount = 64;
+    private final EnemyStore[] shards = new EnemyStore[shardCount];
+    /** Shard of every registered enemy by id, stripe of an id is chosen by its hash */
+    private final LongIntMap[] shardOfId = new LongIntMap[idStripeCount];
+
+    /**
+     * @param shape playable part of the rectangle (inside game area, outside banned areas),
+     *              {@code null} if the whole rectangle is playable
+     */
+    record Region(Rectangle rectangle, TriangleSampler shape, int difficulty, AtomicInteger capLeft) {
         Region(Rectangle rectangle, int difficulty, int cap) {
-            this(rectangle, new ArrayList<>(), difficulty, new MutableInt(cap));
+            this(rectangle, null, difficulty, new AtomicInteger(cap));
+        }
+
+        Region withShape(TriangleSampler shape) {
+            return new Region(rectangle, shape, difficulty, capLeft);
+        }
+
+        boolean isFullyPlayable() {
+            return shape == null;
+        }
+
+        Position randomPosition(SplittableRandom rnd) {
+            if (isFullyPlayable())
+                return rectangle.proportionalPosition(rnd.nextDouble(), rnd.nextDouble());
+            return shape.randomPoint(rnd);
         }
     }
 
+    /** Everything derived from geometry, cities and difficulty configuration, see {@link RegionCache} */
+    record RegionLayout(Region[] regions, int[] regionTree, int regionTreeRoot, List<PolygonWithDifficulty> areas) { }
+
     private int latitudeIdOf(double latitude) {
         int n = 1 << registry.getGameAreaSplitLvl();
         double envLatW = fullEnvelope.upperLatitude() - fullEnvelope.lowerLatitude();
@@ -60,240 +119,768 @@ public class MonsterManager {
         return Math.max(0, Math.min((int) dy, n - 1));
     }
     private int getRegionIdOf(Position position) {
-        return regionIdOf[latitudeIdOf(position.latitude())][longitudeIdOf(position.longitude())];
+        int i = latitudeIdOf(position.latitude());
+        int j = longitudeIdOf(position.longitude());
+        int ref = regionTreeRoot;
+        for (int bit = (1 << registry.getGameAreaSplitLvl()) >> 1; ref >= 0; bit >>= 1)
+            ref = regionTree[4 * ref + ((i & bit) != 0 ? 2 : 0) + ((j & bit) != 0 ? 1 : 0)];
+        return -ref - 1;
     }
 
     public List<PolygonWithDifficulty> getAreas() {
         return areasWithDifficulties;
     }
 
+    /**
+     * Difficulty of a grid cell is the lowest lvl whose ring (scaled by city population) contains its center,
+     * it is evaluated lazily on a sparse quadtree that subdivides only near ring boundaries.
+     * Uniform blocks of nonzero difficulty become one region with cap {@code 3**k}, where {@code 2**k} is the side of the block,
+     * cells of difficulty 0 are never merged and stay regions of cap 1. Regions and caps are the same as the dense grid had.
+     * <p>
+     * Top levels of the tree are built in parallel with fork-join, every task builds into its own {@link Builder}
+     * which is appended to the parent's one when the task is joined.
+     */
     private class RegionGenerator {
         final int n = 1 << registry.getGameAreaSplitLvl();
-        final int[][] difficulty = new int[n][n];
+        final int defaultDifficulty = registry.getDifficulties().size() - 1;
+        /** Nodes bigger than this are split into parallel tasks */
+        final int parallelSizeThreshold = Math.max(n >> 5, 8);
+
+        final Builder generated;
+        final int generatedTreeRoot;
+
+        /**
+         * Bounds on distance use equirectangular projection over lat/lon rectangles,
+         * so they are widened a bit to stay conservative. Leaves use exact distance
+         */
+        static final double distanceSlack = 0.01;
+        static final double earthRadius = 6371 * 1000;
+
+        record CityRings(Position position, double[] radii) {
+            int difficultyAt(double distance, int defaultDifficulty) {
+                for (int lvl = 0; lvl < radii.length; ++lvl)
+                    if (distance < radii[lvl])
+                        return lvl;
+                return defaultDifficulty;
+            }
+            /** Whether every ring boundary lies outside of {@code [dMin, dMax]} */
+            boolean isUniform(double dMin, double dMax) {
+                for (double radius : radii)
+                    if (dMin < radius && radius <= dMax)
+                        return false;
+                return true;
+            }
+        }
 
-        final List<Region> generatedRegions = new ArrayList<>();
-        final int[][] generatedRegionIdOf = new int[n][n];
+        record RegionInfo(Rectangle rectangle, int difficulty, int cap) { }
+        /** Either a region that can still be merged with its siblings or a reference to an already built subtree */
+        record Subtree(RegionInfo mergeable, int ref) { }
 
-        @With
-        record RegionInfo(int latL, int latR, int lonL, int lonR, Rectangle rectangle, int difficulty, int cap) { }
+        /** Regions and quadtree nodes, refs are local to the builder until it is appended to another one */
+        static class Builder {
+            final List<Region> regions = new ArrayList<>();
+            int[] tree = new int[64];
+            int nodes = 0;
 
-        void registerRegion(RegionInfo info) {
-            if (info == null)
-                return;
-            Region region = new Region(info.rectangle, info.difficulty, info.cap);
+            int registerRegion(RegionInfo info) {
+                regions.add(new Region(info.rectangle, info.difficulty, info.cap));
+                return -regions.size();
+            }
 
-            for (int i = info.latL; i < info.latR; ++i)
-                for (int j = info.lonL; j < info.lonR; ++j)
-                    generatedRegionIdOf[i][j] = generatedRegions.size();
-            generatedRegions.add(region);
-        }
+            int materialize(Subtree subtree) {
+                return subtree.mergeable == null ? subtree.ref : registerRegion(subtree.mergeable);
+            }
 
-        RegionInfo recursive(int latL, int latR, int lonL, int lonR, Rectangle rectangle) {
-            RegionInfo info = new RegionInfo(latL, latR, lonL, lonR, rectangle, difficulty[latL][lonL], 1);
+            void ensureNodes(int count) {
+                if (4 * count > tree.length)
+                    tree = Arrays.copyOf(tree, Math.max(4 * count, 2 * tree.length));
+            }
 
-            if (latR - latL == 1)
-                return info;
+            int newNode(int[] refs) {
+                ensureNodes(nodes + 1);
+                System.arraycopy(refs, 0, tree, 4 * nodes, 4);
+                return nodes++;
+            }
 
-            Rectangle[][] subRectangles = rectangle.kSplit(2);
-            int latM = (latL + latR) / 2;
-            int lonM = (lonL + lonR) / 2;
-
-            RegionInfo[] infos = {
-                recursive(latL, latM, lonL, lonM, subRectangles[0][0]),
-                recursive(latL, latM, lonM, lonR, subRectangles[0][1]),
-                recursive(latM, latR, lonL, lonM, subRectangles[1][0]),
-                recursive(latM, latR, lonM, lonR, subRectangles[1][1])
-            };
-
-            for (RegionInfo subInfo : infos) {
-                if (subInfo == null || subInfo.difficulty != info.difficulty || info.difficulty == 0) {
-                    Arrays.stream(infos).forEach(this::registerRegion);
-                    return null;
-                }
+            static int relocate(int ref, int nodeOffset, int regionOffset) {
+                return ref >= 0 ? ref + nodeOffset : ref - regionOffset;
             }
 
-            return info.withCap(infos[0].cap * 3);
+            /** Appends everything built by {@code other}, returns {@code ref} of {@code other} relocated into this builder */
+            int append(Builder other, int ref) {
+                int nodeOffset = nodes, regionOffset = regions.size();
+                regions.addAll(other.regions);
+                ensureNodes(nodes + other.nodes);
+                for (int i = 0; i < 4 * other.nodes; ++i)
+                    tree[4 * nodes + i] = relocate(other.tree[i], nodeOffset, regionOffset);
+                nodes += other.nodes;
+                return relocate(ref, nodeOffset, regionOffset);
+            }
         }
 
-        void mark(Position position, int value, double radius, int di, int dj) {
-            int startI = latitudeIdOf(position.latitude());
-            int startJ = longitudeIdOf(position.longitude());
+        class NodeTask extends RecursiveTask<Subtree> {
+            final Builder builder = new Builder();
+            final int size;
+            final Rectangle rectangle;
+            final List<CityRings> cities;
+            final int floor;
+
+            NodeTask(int size, Rectangle rectangle, List<CityRings> cities, int floor) {
+                this.size = size;
+                this.rectangle = rectangle;
+                this.cities = cities;
+                this.floor = floor;
+            }
 
-            outerLoop:
-            for (int i = startI; 0 <= i && i < n; i += di) {
-                for (int j = startJ; 0 <= j && j < n; j += dj) {
-                    Position center = fullEnvelope.proportionalPosition((i + 0.5) / n, (j + 0.5) / n);
-                    if (position.distance(center) >= radius) {
-                        if (j == startJ)
-                            break outerLoop;
-                        break;
-                    }
-                    difficulty[i][j] = Math.min(difficulty[i][j], value);
-                }
+            @Override
+            protected Subtree compute() {
+                return recursive(builder, size, rectangle, cities, floor);
             }
         }
 
-        void processCity(City city) {
-            if (city.population() < registry.getCityThreshold())
-                return;
+        static double projectedDistance(Position position, double latitude, double longitude) {
+            double meanLatitude = Math.toRadians((position.latitude() + latitude) / 2);
+            double dx = Math.toRadians(longitude - position.longitude()) * Math.cos(meanLatitude);
+            double dy = Math.toRadians(latitude - position.latitude());
+            return earthRadius * Math.sqrt(dx * dx + dy * dy);
+        }
 
-            double scale = Math.log10(city.population()) / 6; // city 1M <=> scale == 1
-            List<DifficultyLvl> difficulties = registry.getDifficulties();
+        double minDistance(Position position, Rectangle rectangle) {
+            double lat = Math.max(rectangle.lowerLatitude(), Math.min(position.latitude(), rectangle.upperLatitude()));
+            double lon = Math.max(rectangle.lowerLongitude(), Math.min(position.longitude(), rectangle.upperLongitude()));
+            return projectedDistance(position, lat, lon) * (1 - distanceSlack);
+        }
+
+        double maxDistance(Position position, Rectangle rectangle) {
+            double result = 0;
+            for (double lat : new double[]{rectangle.lowerLatitude(), rectangle.upperLatitude()})
+                for (double lon : new double[]{rectangle.lowerLongitude(), rectangle.upperLongitude()})
+                    result = Math.max(result, projectedDistance(position, lat, lon));
+            return result * (1 + distanceSlack);
+        }
 
-            for (int lvl = 0; lvl < difficulties.size() - 1; ++lvl) {
-                double radius = difficulties.get(lvl).radiusInMeters() * scale;
-                mark(city.position(), lvl, radius, -1, -1);
-                mark(city.position(), lvl, radius, -1, +1);
-                mark(city.position(), lvl, radius, +1, -1);
-                mark(city.position(), lvl, radius, +1, +1);
+        /**
+         * Cap of a uniform block of {@code size x size} cells with nonzero difficulty, the same as the dense grid
+         * gave it by merging four equal siblings level by level. Blocks of difficulty 0 are never merged
+         */
+        static int mergedCapOf(int size) {
+            int cap = 1;
+            for (int s = size; s > 1; s /= 2)
+                cap *= 3;
+            return cap;
+        }
+
+        /**
+         * @param cities cities that may still change difficulty somewhere inside this node
+         * @param floor  difficulty given by all other cities
+         */
+        Subtree recursive(Builder builder, int size, Rectangle rectangle, List<CityRings> cities, int floor) {
+            if (size == 1) {
+                Position center = rectangle.getCenter();
+                for (CityRings city : cities)
+                    floor = Math.min(floor, city.difficultyAt(city.position.distance(center), defaultDifficulty));
+                return new Subtree(new RegionInfo(rectangle, floor, 1), 0);
+            }
+
+            List<CityRings> relevant = new ArrayList<>();
+            for (CityRings city : cities) {
+                double dMin = minDistance(city.position, rectangle);
+                int lowest = city.difficultyAt(dMin, defaultDifficulty);
+                if (lowest >= floor)
+                    continue;
+                if (city.isUniform(dMin, maxDistance(city.position, rectangle)))
+                    floor = lowest;
+                else
+                    relevant.add(city);
             }
+            int finalFloor = floor;
+            relevant.removeIf(city -> city.difficultyAt(minDistance(city.position, rectangle), defaultDifficulty) >= finalFloor);
+
+            if (relevant.isEmpty() && floor != 0)
+                return new Subtree(new RegionInfo(rectangle, floor, mergedCapOf(size)), 0);
+
+            Rectangle[][] subRectangles = rectangle.kSplit(2);
+            Subtree[] subtrees = new Subtree[4];
+            if (size > parallelSizeThreshold) {
+                NodeTask[] tasks = new NodeTask[4];
+                for (int q = 0; q < 4; ++q)
+                    tasks[q] = new NodeTask(size / 2, subRectangles[q / 2][q % 2], relevant, floor);
+                ForkJoinTask.invokeAll(tasks);
+                for (int q = 0; q < 4; ++q) {
+                    Subtree subtree = tasks[q].join();
+                    subtrees[q] = subtree.mergeable != null ? subtree :
+                        new Subtree(null, builder.append(tasks[q].builder, subtree.ref));
+                }
+            }
+            else {
+                for (int q = 0; q < 4; ++q)
+                    subtrees[q] = recursive(builder, size / 2, subRectangles[q / 2][q % 2], relevant, floor);
+            }
+
+            RegionInfo first = subtrees[0].mergeable;
+            boolean merge = first != null && first.difficulty != 0;
+            for (Subtree subtree : subtrees)
+                merge = merge && subtree.mergeable != null && subtree.mergeable.difficulty == first.difficulty;
+
+            if (merge)
+                return new Subtree(new RegionInfo(rectangle, first.difficulty, first.cap * 3), 0);
+            return new Subtree(null, builder.newNode(Arrays.stream(subtrees).mapToInt(builder::materialize).toArray()));
         }
 
         RegionGenerator(List<City> cities) {
-            if ((n & (n - 1)) > 0)
-                throw new RuntimeException("regionIdOf.length has to be a power of 2");
-            for (int[] row : difficulty)
-                Arrays.fill(row, registry.getDifficulties().size() - 1);
+            List<DifficultyLvl> difficulties = registry.getDifficulties();
+            List<CityRings> rings = new ArrayList<>();
+            for (City city : cities) {
+                if (city.population() < registry.getCityThreshold())
+                    continue;
+                double scale = Math.log10(city.population()) / 6; // city 1M <=> scale == 1
+                double[] radii = new double[difficulties.size() - 1];
+                for (int lvl = 0; lvl < radii.length; ++lvl)
+                    radii[lvl] = difficulties.get(lvl).radiusInMeters() * scale;
+                rings.add(new CityRings(city.position(), radii));
+            }
 
-            cities.forEach(this::processCity);
-            registerRegion(recursive(0, n, 0, n, fullEnvelope));
-            log.info("Generated {} regions", generatedRegions.size());
+            NodeTask root = new NodeTask(n, fullEnvelope, rings, defaultDifficulty);
+            Subtree tree = root.invoke();
+            generated = root.builder;
+            generatedTreeRoot = generated.materialize(tree);
+            log.info("Generated {} regions, quadtree has {} nodes", generated.regions.size(), generated.nodes);
         }
     }
 
-    public MonsterManager(CityProvider cityProvider, Registry registry, Supplier<EnemyId> enemyIdSupplier) {
+    public MonsterManager(CityProvider cityProvider, RegionCache regionCache, Registry registry, Supplier<EnemyId> enemyIdSupplier) {
         this.registry = registry;
         this.enemyIdSupplier = enemyIdSupplier;
 
-        for (EnemyType type : registry.getAllEnemyTypes())
-            enemiesPerType.put(type.typeId(), new LinkedHashSet<>());
+        typeIds = registry.getAllEnemyTypes().stream().map(EnemyType::typeId).toArray(EnemyTypeId[]::new);
+        for (int t = 0; t < typeIds.length; ++t)
+            typeIndexOf.put(typeIds[t], t);
 
         fullEnvelope = Rectangle.envelopeOf(registry.getGameArea());
 
-        RegionGenerator generator = new RegionGenerator(cityProvider.getCities());
-        regionIdOf = generator.generatedRegionIdOf;
-        regions = generator.generatedRegions.toArray(Region[]::new);
+        List<City> cities = cityProvider.getCities(registry.getCountryCodes());
+        RegionLayout layout = regionCache.load(registry, cities).orElseGet(() -> {
+            RegionLayout generated = generateLayout(cities);
+            regionCache.store(registry, cities, generated);
+            return generated;
+        });
+        regions = layout.regions();
+        regionTree = layout.regionTree();
+        regionTreeRoot = layout.regionTreeRoot();
+        areasWithDifficulties = layout.areas();
+        grid = new Grid(fullEnvelope, registry.getVisibilityRangeInMeters() / cellsPerVisibilityRange);
+        for (int i = 0; i < shardCount; ++i)
+            shards[i] = new EnemyStore(grid, typeIds.length);
+        for (int i = 0; i < idStripeCount; ++i)
+            shardOfId[i] = new LongIntMap();
+    }
 
-        for (Region region : regions) {
-            List<Polygon> polys = registry.getIntersectionWithGameArea(region.rectangle().asPolygon());
-            polys.forEach(poly -> areasWithDifficulties.add(new PolygonWithDifficulty(poly, region.difficulty)));
+    private RegionLayout generateLayout(List<City> cities) {
+        RegionGenerator generator = new RegionGenerator(cities);
+        Region[] generatedRegions = generator.generated.regions.toArray(Region[]::new);
+        List<PolygonWithDifficulty> areas = new ArrayList<>();
+
+        for (int i = 0; i < generatedRegions.length; ++i) {
+            Region region = generatedRegions[i];
+            List<Polygon> polys = registry.getPlayablePartOf(region.rectangle().asPolygon());
+            polys.forEach(poly -> areas.add(new PolygonWithDifficulty(poly, region.difficulty)));
+            generatedRegions[i] = clip(region, polys);
         }
+        int[] tree = Arrays.copyOf(generator.generated.tree, 4 * generator.generated.nodes);
+        return new RegionLayout(generatedRegions, tree, generator.generatedTreeRoot, areas);
     }
 
-    public void registerEnemy(Enemy enemy) {
-        EnemyId enemyId = enemy.enemyId();
-        EnemyType type = registry.getEnemyType(enemy);
-        Region region = regions[getRegionIdOf(enemy.position())];
+    /** Shoelace formula in square degrees, the same units as {@link TriangleSampler#getArea} */
+    private static double degreeArea(Polygon poly) {
+        List<Position> points = poly.points();
+        double doubled = 0;
+        for (int i = 0; i < points.size(); ++i) {
+            Position a = points.get(i), b = points.get((i + 1) % points.size());
+            doubled += a.longitude() * b.latitude() - b.longitude() * a.latitude();
+        }
+        return Math.abs(doubled) / 2;
+    }
 
-        if (enemies.containsKey(enemyId))
-            throw new RuntimeException();
+    /** Regions without playable area get no cap, so that we do not waste draws on them */
+    private Region clip(Region region, List<Polygon> playable) {
+        Rectangle r = region.rectangle();
+        double rectangleArea = (r.upperLatitude() - r.lowerLatitude()) * (r.upperLongitude() - r.lowerLongitude());
+        double playableArea = playable.stream().mapToDouble(MonsterManager::degreeArea).sum();
 
-        enemies.put(enemyId, enemy);
-        enemiesPerType.get(enemy.typeId()).add(enemyId);
-        region.enemiesHere.add(enemyId);
+        if (playableArea >= rectangleArea * (1 - 1e-9))
+            return region;
 
-        if (!type.ignoreAreaCap())
-            region.capLeft.decrement();
+        List<Polygon> triangles = playable.stream().flatMap(poly -> registry.triangulate(poly).stream()).toList();
+        TriangleSampler shape = TriangleSampler.ofTriangles(triangles);
+        if (shape.isEmpty())
+            region.capLeft().set(0);
+        return region.withShape(shape);
     }
-    public void unregisterEnemy(EnemyId enemyId) {
-        Enemy enemy = enemies.remove(enemyId);
+
+    /** Only for registries that differ from the current one in non-structural fields, see {@link soturi.server.ConfigDiff} */
+    public void setRegistry(Registry registry) {
+        this.registry = registry;
+    }
+
+    private int minLvl(Region region) {
+        return registry.getDifficulties().get(region.difficulty).minLvl();
+    }
+    private int maxLvl(Region region) {
+        return registry.getDifficulties().get(region.difficulty).maxLvl();
+    }
+    private boolean lvlInRange(Region region, int lvl) {
+        return minLvl(region) <= lvl && lvl <= maxLvl(region);
+    }
+
+    /**
+     * Whether {@code enemy}, e.g. one from a manager of the previous config, could have been spawned by this one.
+     * Caps are not checked, candidates have to go through {@link #filterByCaps} as well
+     */
+    public boolean canHold(Enemy enemy) {
         EnemyType type = registry.getEnemyType(enemy);
+        if (type == null || !type.lvlInRange(enemy.lvl()))
+            return false;
         Region region = regions[getRegionIdOf(enemy.position())];
+        return (type.ignoreAreaDifficulty() || lvlInRange(region, enemy.lvl())) &&
+               registry.isInsideGameArea(enemy.position()) &&
+               registry.isInsideSpawnAreaForType(enemy.typeId(), enemy.position());
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+    private int shardOfCell(long cellKey) {
+        return mix(grid.tileKeyOf(cellKey, cellsPerTile)) & (shardCount - 1);
+    }
+    private LongIntMap stripeOf(long id) {
+        return shardOfId[mix(id) & (idStripeCount - 1)];
+    }
+    private static int globalSlot(int shard, int localSlot) {
+        return localSlot * shardCount + shard;
+    }
 
-        if (!enemiesPerType.get(enemy.typeId()).remove(enemyId))
-            throw new RuntimeException();
-        if (!region.enemiesHere.remove(enemyId))
-            throw new RuntimeException();
+    /** Has to be called under the monitor of {@code shard} */
+    private Enemy enemyAt(EnemyStore shard, int localSlot) {
+        return new Enemy(
+            typeIds[shard.type(localSlot)], new EnemyId(shard.id(localSlot)), shard.lvl(localSlot), shard.position(localSlot)
+        );
+    }
 
+    public void registerEnemy(Enemy enemy) {
+        EnemyType type = registry.getEnemyType(enemy);
+        int regionId = getRegionIdOf(enemy.position());
+        int typeIndex = typeIndexOf.get(enemy.typeId());
+        long id = enemy.enemyId().id();
+        Position position = enemy.position();
+        int shardIndex = shardOfCell(grid.cellKeyOf(position.latitude(), position.longitude()));
+
+        LongIntMap stripe = stripeOf(id);
+        synchronized (stripe) {
+            if (stripe.get(id) >= 0)
+                throw new RuntimeException("enemy " + id + " is already registered");
+            EnemyStore shard = shards[shardIndex];
+            synchronized (shard) {
+                shard.add(id, typeIndex, enemy.lvl(), position.latitude(), position.longitude(), regionId);
+            }
+            stripe.put(id, shardIndex);
+        }
         if (!type.ignoreAreaCap())
-            region.capLeft.increment();
+            regions[regionId].capLeft.decrementAndGet();
+    }
+    /**
+     * Only locks the stripe of the id and the shard of the enemy, so kills of other enemies proceed in parallel
+     *
+     * @return slot the enemy occupied or -1 if it was already unregistered (e.g. killed by another player),
+     *         the slot may be reused by enemies registered later
+     */
+    public int unregisterEnemy(EnemyId enemyId) {
+        long id = enemyId.id();
+        int shardIndex, localSlot;
+        EnemyType type;
+        Region region;
+
+        LongIntMap stripe = stripeOf(id);
+        synchronized (stripe) {
+            shardIndex = stripe.remove(id);
+            if (shardIndex < 0)
+                return -1;
+            EnemyStore shard = shards[shardIndex];
+            synchronized (shard) {
+                localSlot = shard.slotOf(id);
+                type = registry.getEnemyTypeById(typeIds[shard.type(localSlot)]);
+                region = regions[shard.region(localSlot)];
+                shard.remove(localSlot);
+            }
+        }
+        if (!type.ignoreAreaCap())
+            region.capLeft.incrementAndGet();
+        return globalSlot(shardIndex, localSlot);
+    }
+
+    private int slotOf(long id) {
+        LongIntMap stripe = stripeOf(id);
+        synchronized (stripe) {
+            int shardIndex = stripe.get(id);
+            if (shardIndex < 0)
+                return -1;
+            EnemyStore shard = shards[shardIndex];
+            synchronized (shard) {
+                return globalSlot(shardIndex, shard.slotOf(id));
+            }
+        }
     }
 
-    public long getEnemyCount() { return enemies.size(); }
+    /**
+     * Enemies occupy dense slots (see {@link EnemyStore}), so per-session state can be kept in bitsets.
+     * A slot stays with its enemy until it is unregistered
+     *
+     * @return slot of every enemy or -1 for enemies that are not registered
+     */
+    public int[] slotsOf(List<Enemy> list) {
+        int[] slots = new int[list.size()];
+        for (int i = 0; i < slots.length; ++i)
+            slots[i] = slotOf(list.get(i).enemyId().id());
+        return slots;
+    }
+
+    public long getEnemyCount() {
+        long count = 0;
+        for (EnemyStore shard : shards)
+            synchronized (shard) {
+                count += shard.size();
+            }
+        return count;
+    }
+    /** Enemies are listed shard by shard */
     public List<Enemy> getAllEnemies() {
-        return enemies.values().stream().toList();
+        List<Enemy> result = new ArrayList<>();
+        for (EnemyStore shard : shards)
+            synchronized (shard) {
+                for (int slot = 0; slot < shard.slotLimit(); ++slot)
+                    if (shard.isUsed(slot))
+                        result.add(enemyAt(shard, slot));
+            }
+        return result;
     }
-    public Map<EnemyId, Enemy> getEnemyMap() {
-        return Collections.unmodifiableMap(enemies);
+    public Optional<Enemy> getEnemy(EnemyId enemyId) {
+        int slot = slotOf(enemyId.id());
+        if (slot < 0)
+            return Optional.empty();
+        EnemyStore shard = shards[slot % shardCount];
+        synchronized (shard) {
+            // it might have been unregistered in the meantime
+            int localSlot = slot / shardCount;
+            return shard.isUsed(localSlot) && shard.id(localSlot) == enemyId.id() ?
+                Optional.of(enemyAt(shard, localSlot)) : Optional.empty();
+        }
     }
 
-    private class EnemyGenerator {
-        final Random rnd = new Random();
-        final List<Enemy> generated = new ArrayList<>();
-        final Map<EnemyTypeId, Integer> capLeftByType = new HashMap<>();
-        final int[] capLeftByRegion;
+    /**
+     * Passes enemies closer than {@code meters} together with their slots to {@code consumer},
+     * every cell is read under the monitor of its shard
+     */
+    private void queryRadius(Position position, double meters, ObjIntConsumer<Enemy> consumer) {
+        int[] range = grid.cellRangeOf(position, meters);
+        for (int i = range[0]; i <= range[1]; ++i)
+            for (int j = range[2]; j <= range[3]; ++j) {
+                long key = grid.cellKey(i, j);
+                int shardIndex = shardOfCell(key);
+                EnemyStore shard = shards[shardIndex];
+                synchronized (shard) {
+                    shard.queryCell(key, position, meters, s -> consumer.accept(enemyAt(shard, s), globalSlot(shardIndex, s)));
+                }
+            }
+    }
+
+    /**
+     * Sessions see enemies closer than {@link Registry#getVisibilityRangeInMeters} to their interest center.
+     * The center is kept until the session gets further than {@link Registry#getVisibilityRefreshRangeInMeters}
+     * from it, so small moves do not produce any diff. It is the same rule the per-session refresh used to have
+     */
+    public Position interestCenterOf(Position position, Position center) {
+        if (center != null && center.distance(position) <= registry.getVisibilityRefreshRangeInMeters())
+            return center;
+        return position;
+    }
+
+    public boolean isVisibleFrom(Position center, Position enemy) {
+        return center.distance(enemy) < registry.getVisibilityRangeInMeters();
+    }
+
+    /** Key of the grid cell of {@code center}, sessions are indexed by it to route newly registered enemies */
+    public long anchorOf(Position center) {
+        return grid.cellKeyOf(center.latitude(), center.longitude());
+    }
+
+    /**
+     * Shard that owns the tile of {@code anchor}, in {@code [0, shardCount)}. Callers index sessions by it,
+     * so that a session and the enemies around it are owned by the same shard
+     */
+    public int shardOfAnchor(long anchor) {
+        return shardOfCell(anchor);
+    }
+
+    /**
+     * Anchors of all cells that may contain the center of a session that sees an enemy at {@code position},
+     * callers still have to check {@link #isVisibleFrom}
+     */
+    public long[] interestedAnchors(Position position) {
+        int[] range = grid.cellRangeOf(position, registry.getVisibilityRangeInMeters());
+        long[] anchors = new long[(int) Grid.cellCount(range)];
+        int k = 0;
+        for (int i = range[0]; i <= range[1]; ++i)
+            for (int j = range[2]; j <= range[3]; ++j)
+                anchors[k++] = grid.cellKey(i, j);
+        return anchors;
+    }
+
+    /** Enemies that entered and left the visibility circle, together with their slots */
+    public record InterestChange(List<Enemy> entered, int[] enteredSlots, List<EnemyId> left, int[] leftSlots) { }
+
+    /**
+     * Diff of the visibility circles around {@code from} and {@code to}, both are read with radius queries.
+     * Without a previous center (after login or a config reload) the slots in {@code known} that are outside
+     * of the new circle are reported as left instead
+     */
+    public InterestChange interestChange(Position from, Position to, BitSet known) {
+        double range = registry.getVisibilityRangeInMeters();
+
+        List<Enemy> entered = new ArrayList<>();
+        IntStream.Builder enteredSlots = IntStream.builder();
+        queryRadius(to, range, (enemy, slot) -> {
+            if (from != null && isVisibleFrom(from, enemy.position()))
+                return;
+            entered.add(enemy);
+            enteredSlots.add(slot);
+        });
+
+        List<EnemyId> left = new ArrayList<>();
+        IntStream.Builder leftSlots = IntStream.builder();
+        if (from == null) {
+            for (int slot = known.nextSetBit(0); slot >= 0; slot = known.nextSetBit(slot + 1)) {
+                EnemyStore shard = shards[slot % shardCount];
+                int localSlot = slot / shardCount;
+                synchronized (shard) {
+                    if (shard.isUsed(localSlot) && !isVisibleFrom(to, shard.position(localSlot))) {
+                        left.add(new EnemyId(shard.id(localSlot)));
+                        leftSlots.add(slot);
+                    }
+                }
+            }
+        }
+        else {
+            queryRadius(from, range, (enemy, slot) -> {
+                if (isVisibleFrom(to, enemy.position()))
+                    return;
+                left.add(enemy.enemyId());
+                leftSlots.add(slot);
+            });
+        }
+        return new InterestChange(entered, enteredSlots.build().toArray(), left, leftSlots.build().toArray());
+    }
+
+    /** Immutable view of caps left at some point in time, enemies can be generated against it without the lock */
+    public record CapSnapshot(int[] capLeftByRegion, Map<EnemyTypeId, Integer> capLeftByType) {
+        public CapSnapshot {
+            capLeftByRegion = capLeftByRegion.clone();
+            capLeftByType = Map.copyOf(capLeftByType);
+        }
+    }
 
-        int minLvl(Region region) {
-            return registry.getDifficulties().get(region.difficulty).minLvl();
+    private int countOfType(int typeIndex) {
+        int count = 0;
+        for (EnemyStore shard : shards)
+            synchronized (shard) {
+                count += shard.countOfType(typeIndex);
+            }
+        return count;
+    }
+
+    /**
+     * Caps are consistent only if no enemy is registered or unregistered concurrently.
+     * Enemies registered directly (not through {@link #filterByCaps}) may exceed caps, those are reported as 0
+     */
+    public CapSnapshot snapshotCaps() {
+        int[] capLeftByRegion = Arrays.stream(regions).mapToInt(r -> Math.max(0, r.capLeft.get())).toArray();
+        Map<EnemyTypeId, Integer> capLeftByType = new HashMap<>();
+        for (EnemyType type : registry.getAllEnemyTypes()) {
+            int currently = countOfType(typeIndexOf.get(type.typeId()));
+            capLeftByType.put(type.typeId(), type.totalCap() < 0 ? Integer.MAX_VALUE : Math.max(0, type.totalCap() - currently));
         }
-        int maxLvl(Region region) {
-            return registry.getDifficulties().get(region.difficulty).maxLvl();
+        return new CapSnapshot(capLeftByRegion, capLeftByType);
+    }
+
+    /** Mutable countdown of a {@link CapSnapshot} */
+    private class CapCounter {
+        final int[] capLeftByRegion;
+        final Map<EnemyTypeId, Integer> capLeftByType;
+
+        CapCounter(CapSnapshot snapshot) {
+            capLeftByRegion = snapshot.capLeftByRegion().clone();
+            capLeftByType = new HashMap<>(snapshot.capLeftByType());
         }
-        boolean lvlInRange(Region region, int lvl) {
-            return minLvl(region) <= lvl && lvl <= maxLvl(region);
+
+        boolean anyTypeCapLeft() {
+            return capLeftByType.values().stream().anyMatch(capLeft -> capLeft > 0);
         }
 
-        void tryAdd(Enemy enemy) {
-            EnemyType type = registry.getEnemyType(enemy);
-            int typeCapLeft = capLeftByType.get(type.typeId());
-            int regionId = getRegionIdOf(enemy.position());
+        /** Takes one unit of cap for enemy of {@code typeId} at {@code position} if there is any left */
+        boolean tryTake(EnemyTypeId typeId, Position position) {
+            EnemyType type = registry.getEnemyTypeById(typeId);
+            int typeCapLeft = capLeftByType.get(typeId);
+            int regionId = getRegionIdOf(position);
 
             if (typeCapLeft <= 0)
-                return;
+                return false;
             if (!type.ignoreAreaCap() && capLeftByRegion[regionId] <= 0)
-                return;
-            if (!type.ignoreAreaDifficulty() && !lvlInRange(regions[regionId], enemy.lvl()))
-                return;
-            if (!registry.isInsideGameArea(enemy.position()))
-                return;
-            if (!registry.isInsideSpawnAreaForType(enemy.typeId(), enemy.position()))
-                return;
+                return false;
 
-            generated.add(enemy);
-            capLeftByType.put(type.typeId(), typeCapLeft - 1);
+            capLeftByType.put(typeId, typeCapLeft - 1);
             if (!type.ignoreAreaCap())
                 capLeftByRegion[regionId]--;
+            return true;
         }
+    }
 
-        EnemyGenerator() {
-            capLeftByRegion = Arrays.stream(regions).mapToInt(r -> r.capLeft.intValue()).toArray();
-            for (EnemyType type : registry.getAllEnemyTypes()) {
-                int currently = enemiesPerType.get(type.typeId()).size();
-                capLeftByType.put(type.typeId(), type.totalCap() < 0 ? Integer.MAX_VALUE : type.totalCap() - currently);
+    /** Enemy that passed all geometric checks, but is not yet validated against caps nor has an id */
+    private record Candidate(EnemyTypeId typeId, int lvl, Position position) { }
+
+    private static final int spawnWindow = 1 << 14;
+    private static final int spawnChunk = 1 << 9;
+    private static final int maxEmptyWindows = 4;
+
+    /**
+     * Geometric checks are pure, so candidates are generated in parallel by fork-join tasks,
+     * each with its own {@link SplittableRandom}. Caps are then reconciled sequentially in draw order.
+     * Regions are drawn in windows, so that we stop shortly after {@code maxSingleSpawn} is reached.
+     * <p>
+     * Reads only immutable region data and {@code caps}, so it does not need the lock
+     */
+    private class EnemyGenerator {
+        final SplittableRandom rnd;
+        final List<Enemy> generated = new ArrayList<>();
+        final CapCounter caps;
+
+        /** Checks that do not depend on caps, safe to call concurrently */
+        boolean isValid(Candidate candidate) {
+            EnemyType type = registry.getEnemyTypeById(candidate.typeId);
+            Region region = regions[getRegionIdOf(candidate.position)];
+
+            if (!type.ignoreAreaDifficulty() && !lvlInRange(region, candidate.lvl))
+                return false;
+            boolean fullyPlayable = region.isFullyPlayable() && region.rectangle.isInside(candidate.position);
+            if (!fullyPlayable && !registry.isInsideGameArea(candidate.position))
+                return false;
+            return registry.isInsideSpawnAreaForType(candidate.typeId, candidate.position);
+        }
+
+        Candidate drawFrom(Region region, SplittableRandom rnd) {
+            if (rnd.nextDouble() < registry.getSpawnEnemyFailChance())
+                return null;
+            Position position = region.randomPosition(rnd);
+            int lvl = rnd.nextInt(minLvl(region), maxLvl(region) + 1);
+            List<EnemyType> types = registry.getEnemyTypesPerLvl(lvl);
+            EnemyTypeId typeId = types.get(rnd.nextInt(types.size())).typeId();
+            Candidate candidate = new Candidate(typeId, lvl, position);
+            return isValid(candidate) ? candidate : null;
+        }
+
+        /** Draws one candidate per entry of {@code draws[from, to)}, nulls are kept to preserve draw order */
+        class DrawTask extends RecursiveTask<Candidate[]> {
+            final Region[] draws;
+            final int from, to;
+            final SplittableRandom rnd;
+
+            DrawTask(Region[] draws, int from, int to, SplittableRandom rnd) {
+                this.draws = draws;
+                this.from = from;
+                this.to = to;
+                this.rnd = rnd;
             }
 
-            // area based algo
-            Region[] shuffledRegions = Arrays.stream(regions).flatMap(
-                region -> IntStream.range(0, region.capLeft.intValue()).mapToObj(i -> region)
-            ).toArray(Region[]::new);
-            Collections.shuffle(Arrays.asList(shuffledRegions));
+            @Override
+            protected Candidate[] compute() {
+                if (to - from <= spawnChunk) {
+                    Candidate[] result = new Candidate[to - from];
+                    for (int i = from; i < to; ++i)
+                        result[i - from] = drawFrom(draws[i], rnd);
+                    return result;
+                }
+                int mid = (from + to) >>> 1;
+                DrawTask left = new DrawTask(draws, from, mid, rnd.split());
+                DrawTask right = new DrawTask(draws, mid, to, rnd);
+                left.fork();
+                Candidate[] rightResult = right.compute();
+                Candidate[] leftResult = left.join();
+
+                Candidate[] result = Arrays.copyOf(leftResult, to - from);
+                System.arraycopy(rightResult, 0, result, leftResult.length, rightResult.length);
+                return result;
+            }
+        }
 
-            for (Region region : shuffledRegions) {
-                if (generated.size() >= registry.getMaxSingleSpawn())
-                    break;
-                if (rnd.nextDouble() < registry.getSpawnEnemyFailChance())
-                    continue;
-                Position position = region.rectangle.randomPosition(rnd);
-                int lvl = rnd.nextInt(minLvl(region), maxLvl(region) + 1);
-                EnemyTypeId typeId = registry.getRandomEnemyTypeOfLvl(lvl).typeId();
-                EnemyId enemyId = enemyIdSupplier.get();
-                tryAdd(new Enemy(typeId, enemyId, lvl, position));
+        boolean full() {
+            return generated.size() >= registry.getMaxSingleSpawn();
+        }
+
+        void reconcile(Candidate candidate) {
+            if (candidate == null || full())
+                return;
+            if (caps.tryTake(candidate.typeId, candidate.position))
+                generated.add(new Enemy(candidate.typeId, enemyIdSupplier.get(), candidate.lvl, candidate.position));
+        }
+
+        EnemyGenerator(CapSnapshot snapshot, SplittableRandom rnd) {
+            this.rnd = rnd;
+            caps = new CapCounter(snapshot);
+
+            // area based algo, regions are drawn without replacement proportionally to their cap left,
+            // a few consecutive windows without a single accepted candidate mean the rest is blocked by type caps
+            // or geometry, a single one may be just bad luck of spawnEnemyFailChance
+            FenwickSampler sampler = new FenwickSampler(snapshot.capLeftByRegion());
+            int emptyWindows = 0;
+            while (!sampler.isEmpty() && !full() && caps.anyTypeCapLeft() && emptyWindows < maxEmptyWindows) {
+                Region[] draws = new Region[(int) Math.min(spawnWindow, sampler.total())];
+                for (int i = 0; i < draws.length; ++i)
+                    draws[i] = regions[sampler.draw(rnd)];
+                int accepted = generated.size();
+                for (Candidate candidate : new DrawTask(draws, 0, draws.length, rnd.split()).invoke())
+                    reconcile(candidate);
+                emptyWindows = generated.size() == accepted ? emptyWindows + 1 : 0;
             }
 
             // type based algo
+            Random pointRnd = new Random(rnd.nextLong());
             for (EnemyType type : registry.getAllEnemyTypes()) {
                 if (rnd.nextDouble() < type.failChance())
                     continue;
-                Position position = registry.randomSpawnPointForType(type.typeId());
+                Position position = registry.randomSpawnPointForType(type.typeId(), pointRnd);
                 int lvl = rnd.nextInt(type.minLvl(), type.maxLvl() + 1);
-                EnemyId enemyId = enemyIdSupplier.get();
-                tryAdd(new Enemy(type.typeId(), enemyId, lvl, position));
+                Candidate candidate = new Candidate(type.typeId(), lvl, position);
+                reconcile(isValid(candidate) ? candidate : null);
             }
         }
     }
 
-    /** this generates valid candidates to register, but does NOT actually register them */
-    public List<Enemy> generateEnemies() {
-        return new EnemyGenerator().generated;
+    /**
+     * This generates valid candidates against {@code caps}, but does NOT actually register them.
+     * It does not take the lock, caps have to be validated again with {@link #filterByCaps} before registering
+     */
+    public List<Enemy> generateEnemies(CapSnapshot caps) {
+        return new EnemyGenerator(caps, new SplittableRandom()).generated;
+    }
+
+    /** Same as {@link #generateEnemies(CapSnapshot)}, but draws the same candidates for the same {@code seed} */
+    public List<Enemy> generateEnemies(CapSnapshot caps, long seed) {
+        return new EnemyGenerator(caps, new SplittableRandom(seed)).generated;
+    }
+
+    /** Returns candidates that still fit into current caps, in order */
+    public List<Enemy> filterByCaps(List<Enemy> candidates) {
+        CapCounter caps = new CapCounter(snapshotCaps());
+        return candidates.stream()
+            .filter(enemy -> slotOf(enemy.enemyId().id()) < 0 && caps.tryTake(enemy.typeId(), enemy.position()))
+            .toList();
     }
 }
@@ -0,0 +1,233 @@
+package soturi.server.geo;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import soturi.common.Registry;
+import soturi.model.DifficultyLvl;
+import soturi.model.Polygon;
+import soturi.model.PolygonWithDifficulty;
+import soturi.model.Position;
+import soturi.model.Rectangle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Generating regions (quadtree over cities, one JTS clip per region) dominates startup and config reloads,
+ * so the result is stored in a binary file named after a hash of everything it depends on:
+ * game area, banned areas, split lvl, difficulty radii, city threshold and the cities themselves.
+ * Files are read back with a buffered stream straight into the region arrays, a hit refreshes the modification time
+ * of the file, so that the layouts used most recently survive eviction.
+ * <p>
+ * This class is thread safe
+ */
+@Slf4j
+@Component
+public class RegionCache {
+    private static final int magic = 0x534f5452; // "SOTR"
+    private static final int formatVersion = 2;
+    private static final int maxCachedLayouts = 8;
+
+    private final Path cacheDir;
+
+    public RegionCache() {
+        this(Paths.get("static", "region-cache"));
+    }
+
+    @SneakyThrows(IOException.class)
+    public RegionCache(Path cacheDir) {
+        this.cacheDir = cacheDir;
+        Files.createDirectories(cacheDir);
+    }
+
+    @SneakyThrows({NoSuchAlgorithmException.class, IOException.class})
+    byte[] keyOf(Registry registry, List<City> cities) {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), digest))) {
+            out.writeInt(formatVersion);
+            writePolygon(out, registry.getGameArea());
+            out.writeInt(registry.getBanedAreas().size());
+            for (Polygon banned : registry.getBanedAreas())
+                writePolygon(out, banned);
+            out.writeInt(registry.getGameAreaSplitLvl());
+            out.writeInt(registry.getDifficulties().size());
+            for (DifficultyLvl difficulty : registry.getDifficulties())
+                out.writeDouble(difficulty.radiusInMeters());
+
+            // only cities above the threshold influence regions
+            out.writeLong(registry.getCityThreshold());
+            for (City city : cities) {
+                if (city.population() < registry.getCityThreshold())
+                    continue;
+                out.writeLong(city.population());
+                out.writeDouble(city.position().latitude());
+                out.writeDouble(city.position().longitude());
+            }
+        }
+        return digest.digest();
+    }
+
+    private Path pathFor(byte[] key) {
+        return cacheDir.resolve("regions-" + HexFormat.of().formatHex(key) + ".bin");
+    }
+
+    public Optional<MonsterManager.RegionLayout> load(Registry registry, List<City> cities) {
+        byte[] key = keyOf(registry, cities);
+        Path path = pathFor(key);
+        if (!Files.exists(path))
+            return Optional.empty();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            MonsterManager.RegionLayout layout = read(in, key);
+            Files.setLastModifiedTime(path, FileTime.from(Instant.now()));
+            log.info("Loaded {} regions from {}", layout.regions().length, path);
+            return Optional.of(layout);
+        }
+        catch (IOException | RuntimeException exception) {
+            log.warn("Region cache {} is unreadable, regenerating", path, exception);
+            return Optional.empty();
+        }
+    }
+
+    public void store(Registry registry, List<City> cities, MonsterManager.RegionLayout layout) {
+        byte[] key = keyOf(registry, cities);
+        Path path = pathFor(key);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                write(out, key, layout);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Stored {} regions in {}", layout.regions().length, path);
+            evictOld();
+        }
+        catch (IOException exception) {
+            log.warn("Cannot store region cache {}", path, exception);
+        }
+    }
+
+    private void evictOld() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(cacheDir)) {
+            files = list
+                .filter(p -> p.getFileName().toString().endsWith(".bin"))
+                .sorted(Comparator.comparing(p -> p.toFile().lastModified(), Comparator.reverseOrder()))
+                .toList();
+        }
+        for (Path old : files.subList(Math.min(files.size(), maxCachedLayouts), files.size()))
+            Files.deleteIfExists(old);
+    }
+
+    private static void writePolygon(DataOutputStream out, Polygon polygon) throws IOException {
+        out.writeInt(polygon.points().size());
+        for (Position point : polygon.points()) {
+            out.writeDouble(point.latitude());
+            out.writeDouble(point.longitude());
+        }
+    }
+
+    private static Polygon readPolygon(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<Position> points = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i)
+            points.add(new Position(in.readDouble(), in.readDouble()));
+        return new Polygon(points);
+    }
+
+    private static void write(DataOutputStream out, byte[] key, MonsterManager.RegionLayout layout) throws IOException {
+        out.writeInt(magic);
+        out.writeInt(formatVersion);
+        out.write(key);
+
+        out.writeInt(layout.regionTreeRoot());
+        out.writeInt(layout.regionTree().length);
+        for (int ref : layout.regionTree())
+            out.writeInt(ref);
+
+        out.writeInt(layout.regions().length);
+        for (MonsterManager.Region region : layout.regions()) {
+            Rectangle r = region.rectangle();
+            out.writeDouble(r.lowerLatitude());
+            out.writeDouble(r.upperLatitude());
+            out.writeDouble(r.lowerLongitude());
+            out.writeDouble(r.upperLongitude());
+            out.writeInt(region.difficulty());
+            out.writeInt(region.capLeft().intValue());
+
+            double[] shape = region.isFullyPlayable() ? null : region.shape().coordinates();
+            out.writeInt(shape == null ? -1 : shape.length);
+            if (shape != null)
+                for (double coordinate : shape)
+                    out.writeDouble(coordinate);
+        }
+
+        out.writeInt(layout.areas().size());
+        for (PolygonWithDifficulty area : layout.areas()) {
+            out.writeInt(area.difficulty());
+            writePolygon(out, area.polygon());
+        }
+    }
+
+    private static MonsterManager.RegionLayout read(DataInputStream in, byte[] key) throws IOException {
+        if (in.readInt() != magic || in.readInt() != formatVersion)
+            throw new RuntimeException("not a region cache of this version");
+        byte[] storedKey = new byte[key.length];
+        in.readFully(storedKey);
+        if (!Arrays.equals(storedKey, key))
+            throw new RuntimeException("region cache key mismatch");
+
+        int regionTreeRoot = in.readInt();
+        int[] regionTree = new int[in.readInt()];
+        for (int i = 0; i < regionTree.length; ++i)
+            regionTree[i] = in.readInt();
+
+        MonsterManager.Region[] regions = new MonsterManager.Region[in.readInt()];
+        for (int i = 0; i < regions.length; ++i) {
+            Rectangle rectangle = new Rectangle(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+            int difficulty = in.readInt();
+            int cap = in.readInt();
+            int shapeLength = in.readInt();
+
+            MonsterManager.Region region = new MonsterManager.Region(rectangle, difficulty, cap);
+            if (shapeLength >= 0) {
+                double[] shape = new double[shapeLength];
+                for (int j = 0; j < shapeLength; ++j)
+                    shape[j] = in.readDouble();
+                region = region.withShape(TriangleSampler.ofCoordinates(shape));
+            }
+            regions[i] = region;
+        }
+
+        List<PolygonWithDifficulty> areas = new ArrayList<>();
+        int areaCount = in.readInt();
+        for (int i = 0; i < areaCount; ++i) {
+            int difficulty = in.readInt();
+            areas.add(new PolygonWithDifficulty(readPolygon(in), difficulty));
+        }
+        if (in.read() != -1)
+            throw new RuntimeException("trailing bytes in region cache");
+        return new MonsterManager.RegionLayout(regions, regionTree, regionTreeRoot, areas);
+    }
+}
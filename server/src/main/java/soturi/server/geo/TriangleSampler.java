@@ -0,0 +1,105 @@
+package soturi.server.geo;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.triangulate.polygon.PolygonTriangulator;
+import soturi.model.Polygon;
+import soturi.model.Position;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+/**
+ * Uniform random points (in lat/lon space) inside a polygonal geometry without rejection.
+ * Geometry is triangulated once, then a triangle is picked by area with a binary search
+ * and a point is sampled uniformly inside it.
+ * <p>
+ * This class is immutable and thread safe
+ */
+public class TriangleSampler {
+    private final double[] coords; // 6 per triangle: x0 y0 x1 y1 x2 y2, x is longitude
+    private final double[] cumulativeArea;
+
+    public TriangleSampler(Geometry geometry) {
+        this(coordinatesOf(PolygonTriangulator.triangulate(geometry)));
+    }
+
+    /** {@code triangles} have to be polygons with exactly 3 points */
+    public static TriangleSampler ofTriangles(List<Polygon> triangles) {
+        double[] coords = new double[6 * triangles.size()];
+        for (int i = 0; i < triangles.size(); ++i) {
+            List<Position> points = triangles.get(i).points();
+            if (points.size() != 3)
+                throw new RuntimeException("not a triangle " + triangles.get(i));
+            for (int k = 0; k < 3; ++k) {
+                coords[6 * i + 2 * k] = points.get(k).longitude();
+                coords[6 * i + 2 * k + 1] = points.get(k).latitude();
+            }
+        }
+        return new TriangleSampler(coords);
+    }
+
+    /** Inverse of {@link #coordinates()} */
+    static TriangleSampler ofCoordinates(double[] coords) {
+        if (coords.length % 6 != 0)
+            throw new RuntimeException("triangle coordinates have to come in sixes");
+        return new TriangleSampler(coords.clone());
+    }
+
+    /** Flat {@code x0 y0 x1 y1 x2 y2} per triangle, x is longitude, do not modify */
+    double[] coordinates() {
+        return coords;
+    }
+
+    private static double[] coordinatesOf(Geometry triangles) {
+        double[] coords = new double[6 * triangles.getNumGeometries()];
+        for (int i = 0; i < triangles.getNumGeometries(); ++i) {
+            Coordinate[] triangle = triangles.getGeometryN(i).getCoordinates();
+            for (int k = 0; k < 3; ++k) {
+                coords[6 * i + 2 * k] = triangle[k].getX();
+                coords[6 * i + 2 * k + 1] = triangle[k].getY();
+            }
+        }
+        return coords;
+    }
+
+    private TriangleSampler(double[] coords) {
+        this.coords = coords;
+        cumulativeArea = new double[coords.length / 6];
+
+        double total = 0;
+        for (int i = 0; i < cumulativeArea.length; ++i) {
+            int o = 6 * i;
+            double cross = (coords[o + 2] - coords[o]) * (coords[o + 5] - coords[o + 1]) -
+                           (coords[o + 4] - coords[o]) * (coords[o + 3] - coords[o + 1]);
+            total += Math.abs(cross) / 2;
+            cumulativeArea[i] = total;
+        }
+    }
+
+    /** Area in square degrees */
+    public double getArea() {
+        return cumulativeArea.length == 0 ? 0 : cumulativeArea[cumulativeArea.length - 1];
+    }
+
+    public boolean isEmpty() {
+        return getArea() <= 0;
+    }
+
+    public Position randomPoint(RandomGenerator rnd) {
+        if (isEmpty())
+            throw new RuntimeException("cannot sample from an empty geometry");
+
+        int i = Arrays.binarySearch(cumulativeArea, rnd.nextDouble(getArea()));
+        i = Math.min(i < 0 ? -i - 1 : i + 1, cumulativeArea.length - 1);
+
+        // https://www.cs.princeton.edu/~funk/tog02.pdf, section 4.2
+        double r1 = Math.sqrt(rnd.nextDouble()), r2 = rnd.nextDouble();
+        double a = 1 - r1, b = r1 * (1 - r2), c = r1 * r2;
+        int o = 6 * i;
+        double x = a * coords[o] + b * coords[o + 2] + c * coords[o + 4];
+        double y = a * coords[o + 1] + b * coords[o + 3] + c * coords[o + 5];
+        return new Position(y, x);
+    }
+}
@@ -26,6 +26,7 @@ import soturi.server.DynamicConfig;
 import soturi.server.GameService;
 import soturi.server.database.FightEntity;
 import soturi.server.database.FightRepository;
+import soturi.server.database.PlayerWriteBehind;
 
 import java.lang.reflect.Method;
 import java.time.Instant;
@@ -40,6 +41,7 @@ public class DashboardApiController {
     private final DynamicConfig dynamicConfig;
     private final ObjectMapper mapper;
     private final FightRepository fightRepository;
+    private final PlayerWriteBehind playerWriteBehind;
 
     @RolesAllowed("ADMIN")
     @GetMapping("/v1/enemies")
@@ -161,6 +163,12 @@ public class DashboardApiController {
         return sb.toString();
     }
 
+    @RolesAllowed("ADMIN")
+    @GetMapping("/v1/info/write-behind")
+    public PlayerWriteBehind.Stats writeBehindInfo() {
+        return playerWriteBehind.getStats();
+    }
+
     @GetMapping("/v1/current-user")
     public String currentUser() {
         return SecurityContextHolder.getContext().getAuthentication().getName();
@@ -1,6 +1,5 @@
 package soturi.web;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.AllArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
@@ -14,6 +13,7 @@ import soturi.model.messages_to_client.EnemiesDisappear;
 import soturi.model.messages_to_client.MessageToClient;
 import soturi.model.messages_to_client.MessageToClientFactory;
 import soturi.server.GameService;
+import soturi.server.communication.EncodedFrameCache;
 
 import java.util.function.Consumer;
 
@@ -21,8 +21,8 @@ import java.util.function.Consumer;
 @AllArgsConstructor
 @Component
 public class DashboardWebSocketController extends AbstractWebSocketHandler {
-    private final ObjectMapper mapper;
     private final GameService gameService;
+    private final EncodedFrameCache frames;
 
     private MessageToClientFactory sendToSession(WebSocketSession session) {
         return new MessageToClientFactory(new Consumer<>() {
@@ -36,8 +36,11 @@ public class DashboardWebSocketController extends AbstractWebSocketHandler {
                 else
                     log.info("[DASH] {}", messageToClient);
 
-                String asText = mapper.writeValueAsString(messageToClient);
-                session.sendMessage(new TextMessage(asText));
+                TextMessage frame = frames.json(messageToClient);
+                // updates of players processed in parallel can arrive concurrently
+                synchronized (session) {
+                    session.sendMessage(frame);
+                }
             }
         });
     }
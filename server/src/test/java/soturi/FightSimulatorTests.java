@@ -0,0 +1,104 @@
+package soturi;
+
+import org.junit.jupiter.api.Test;
+import soturi.common.Jackson;
+import soturi.common.Registry;
+import soturi.model.Enemy;
+import soturi.model.EnemyId;
+import soturi.model.FightResult;
+import soturi.model.Player;
+import soturi.model.Position;
+import soturi.model.Result;
+import soturi.model.Reward;
+import soturi.model.Statistics;
+import soturi.server.DynamicConfig;
+import soturi.server.FightSimulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FightSimulatorTests {
+    Registry registry = new DynamicConfig(Jackson.mapper, null).getRegistry();
+    FightSimulator fightSimulator = new FightSimulator(registry);
+
+    /** Hit by hit simulation, the closed form has to give exactly the same results */
+    private FightResult simulateByLoop(Player player, Enemy enemy) {
+        Statistics enemyStats = registry.getEnemyStatistics(enemy.lvl());
+        long playerHp = player.hp(), enemyHp = enemyStats.maxHp();
+        long playerAttack = Math.max(player.statistics().attack() - enemyStats.defense(), 1);
+        long enemyAttack = Math.max(enemyStats.attack() - player.statistics().defense(), 1);
+
+        while (playerHp > 0 && enemyHp > 0) {
+            enemyHp = Math.max(0, enemyHp - playerAttack);
+            if (enemyHp == 0)
+                break;
+            playerHp = Math.max(0, playerHp - enemyAttack);
+        }
+
+        long lostHp = player.hp() - playerHp;
+        Result result = lostHp == player.hp() ? Result.LOST : Result.WON;
+        long xp = result == Result.WON ? registry.getRewardFor(enemy).xp() : 0;
+        return new FightResult(result, lostHp, new Reward(xp));
+    }
+
+    private Player randomPlayer(Random rnd) {
+        Statistics statistics = new Statistics(
+            rnd.nextLong(1, 20000),
+            rnd.nextLong(0, 5000),
+            rnd.nextLong(0, 5000)
+        );
+        long hp = rnd.nextInt(10) == 0 ? rnd.nextLong(-10, 1) : rnd.nextLong(1, statistics.maxHp() + 1);
+        return new Player("p", rnd.nextInt(1, registry.getMaxLvl() + 1), 0, hp, statistics, List.of(), List.of());
+    }
+
+    private Enemy randomEnemy(Random rnd) {
+        int lvl = rnd.nextInt(1, registry.getMaxLvl() + 1);
+        return new Enemy(registry.getRandomEnemyTypeOfLvl(lvl).typeId(), new EnemyId(rnd.nextLong()), lvl, Position.KRAKOW);
+    }
+
+    private void assertSameOutcome(FightResult actual, FightResult expected) {
+        assertThat(actual.result()).isEqualTo(expected.result());
+        assertThat(actual.lostHp()).isEqualTo(expected.lostHp());
+        assertThat(actual.reward().xp()).isEqualTo(expected.reward().xp());
+    }
+
+    @Test
+    void closed_form_matches_loop() {
+        Random rnd = new Random(2024);
+        for (int i = 0; i < 2000; ++i) {
+            Player player = randomPlayer(rnd);
+            Enemy enemy = randomEnemy(rnd);
+            assertSameOutcome(fightSimulator.simulateFight(player, enemy), simulateByLoop(player, enemy));
+        }
+    }
+
+    @Test
+    void closed_form_matches_loop_on_one_damage_hits() {
+        Random rnd = new Random(7);
+        for (int i = 0; i < 200; ++i) {
+            // defense above every attack makes both sides deal exactly 1 damage per hit
+            Player player = new Player("p", 1, 0, rnd.nextLong(1, 50000),
+                new Statistics(50000, 0, Long.MAX_VALUE / 2), List.of(), List.of());
+            Enemy enemy = randomEnemy(rnd);
+            assertSameOutcome(fightSimulator.simulateFight(player, enemy), simulateByLoop(player, enemy));
+        }
+    }
+
+    @Test
+    void batch_matches_single_fights() {
+        Random rnd = new Random(99);
+        Player player = randomPlayer(rnd);
+        List<Enemy> enemies = new ArrayList<>();
+        for (int i = 0; i < 100; ++i)
+            enemies.add(randomEnemy(rnd));
+
+        List<FightResult> results = fightSimulator.simulateFights(player, enemies);
+
+        assertThat(results).hasSize(enemies.size());
+        for (int i = 0; i < enemies.size(); ++i)
+            assertSameOutcome(results.get(i), simulateByLoop(player, enemies.get(i)));
+    }
+}
@@ -1,8 +1,23 @@
 package soturi;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import soturi.common.PolygonIndex;
+import soturi.model.Polygon;
 import soturi.model.Position;
 import soturi.model.Rectangle;
+import soturi.server.geo.City;
+import soturi.server.geo.FenwickSampler;
+import soturi.server.geo.GeoNamesCityProvider;
+import soturi.server.geo.GeoNamesParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.withinPercentage;
@@ -22,4 +37,66 @@ public class GeoTests {
         assertThat(area.getCenter().distance(pos)).isNotNegative().isLessThan(1);
         assertThat(corners[0][0].distance(corners[1][1])).isCloseTo(100 * Math.sqrt(2), withinPercentage(1));
     }
+    @Test
+    void fenwick_sampler_draws_whole_multiset() {
+        int[] weights = {3, 0, 1, 7, 0, 0, 2, 5, -1, 4};
+        FenwickSampler sampler = new FenwickSampler(weights);
+        Random rnd = new Random(42);
+
+        int[] drawn = new int[weights.length];
+        assertThat(sampler.total()).isEqualTo(22);
+        while (!sampler.isEmpty())
+            drawn[sampler.draw(rnd)]++;
+
+        for (int i = 0; i < weights.length; ++i)
+            assertThat(drawn[i]).isEqualTo(Math.max(weights[i], 0));
+    }
+    @Test
+    void polygon_index_matches_envelopes() {
+        Rectangle area = Position.KRAKOW.centeredArea(100 * 1000);
+        Random rnd = new Random(42);
+
+        List<Polygon> polygons = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            Position a = area.randomPosition(rnd), b = area.randomPosition(rnd), c = area.randomPosition(rnd);
+            polygons.add(new Polygon(List.of(a, b, c)));
+        }
+        PolygonIndex index = new PolygonIndex(polygons);
+
+        for (int i = 0; i < 1000; ++i) {
+            Position pos = area.randomPosition(rnd);
+            List<Polygon> expected = polygons.stream().filter(p -> Rectangle.envelopeOf(p).isInside(pos)).toList();
+            List<Polygon> tested = new ArrayList<>();
+            assertThat(index.anyMatch(pos, p -> !tested.add(p))).isFalse();
+            assertThat(tested).containsExactlyInAnyOrderElementsOf(expected);
+        }
+    }
+    /** All 19 fields of a GeoNames line, the ones not read by the parser are filled with plausible values */
+    private static String geoNamesLine(String asciiName, String latitude, String longitude, String featureClass, String population) {
+        return String.join("\t",
+            "3094802", asciiName, asciiName, "", latitude, longitude, featureClass, "PPL", "PL", "",
+            "72", "1261", "", "", population, "", "219", "Europe/Warsaw", "2023-01-12"
+        );
+    }
+    @Test
+    void geo_names_lines_and_city_cache(@TempDir Path cacheDir) throws IOException {
+        String dump = String.join("\n",
+            geoNamesLine("Krakow", "50.06143", "19.93658", "P", "755050"),
+            geoNamesLine("Rysy", "49.17944", "20.08806", "T", "1000"),
+            geoNamesLine("Nowhere", "50.1", "20.1", "P", "0"),
+            geoNamesLine("Unknown", "50.2", "20.2", "P", ""),
+            geoNamesLine("Lodz", "51.75", "19.46667", "P", "664860") + "\tfield added in a later dump format"
+        );
+        List<City> cities = GeoNamesParser.parse(new BufferedReader(new StringReader(dump)));
+        assertThat(cities).containsExactly(
+            new City("Krakow", 755050, new Position(50.06143, 19.93658)),
+            new City("Lodz", 664860, new Position(51.75, 19.46667))
+        );
+
+        List<City> cached = new ArrayList<>(cities);
+        cached.add(new City("Łódź", 1, new Position(-51.75, -19.46667)));
+        Path cachePath = cacheDir.resolve("PL_cities.bin");
+        GeoNamesCityProvider.writeCache(cachePath, cached);
+        assertThat(GeoNamesCityProvider.readCache(cachePath)).isEqualTo(cached);
+    }
 }
@@ -13,6 +13,7 @@ import soturi.server.geo.JTSGeoProvider;
 import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
 
 @ExtendWith(SpringExtension.class)
 @Import(value = {JTSGeoProvider.class})
@@ -108,4 +109,58 @@ public class JTSGeoTests {
         List<Polygon> intersect = geoProvider.intersect(a, b);
         assertThat(intersect).hasSize(0);
     }
+
+    @Test
+    void is_inside_test() {
+        Polygon triangle = new Polygon(List.of(
+            new Position(0, 0),
+            new Position(0, 4),
+            new Position(4, 0)
+        ));
+        Polygon sameTriangle = new Polygon(List.copyOf(triangle.points()));
+
+        for (int i = 0; i < 2; ++i) { // second round goes through the cached geometry
+            assertThat(geoProvider.isInside(triangle, new Position(1, 1))).isTrue();
+            assertThat(geoProvider.isInside(triangle, new Position(3, 3))).isFalse();
+            assertThat(geoProvider.isInside(sameTriangle, new Position(1, 1))).isTrue();
+            assertThat(geoProvider.isInside(sameTriangle, new Position(3, 3))).isFalse();
+        }
+    }
+
+    @Test
+    void random_point_is_inside_concave_polygon() {
+        Polygon thinL = new Polygon(List.of(
+            new Position(0, 0),
+            new Position(0, 10),
+            new Position(0.1, 10),
+            new Position(0.1, 0.1),
+            new Position(10, 0.1),
+            new Position(10, 0)
+        ));
+        for (int i = 0; i < 1000; ++i)
+            assertThat(geoProvider.isInside(thinL, geoProvider.randomPoint(thinL))).isTrue();
+    }
+
+    @Test
+    void difference_with_hole_test() {
+        Polygon outer = new Polygon(List.of(
+            new Position(0, 0),
+            new Position(0, 0.04),
+            new Position(0.04, 0.04),
+            new Position(0.04, 0)
+        ));
+        Polygon hole = new Polygon(List.of(
+            new Position(0.01, 0.01),
+            new Position(0.01, 0.02),
+            new Position(0.02, 0.02),
+            new Position(0.02, 0.01)
+        ));
+        List<Polygon> difference = geoProvider.difference(outer, List.of(hole));
+
+        double area = difference.stream().mapToDouble(geoProvider::calculateArea).sum();
+        double expected = geoProvider.calculateArea(outer) - geoProvider.calculateArea(hole);
+        assertThat(area).isCloseTo(expected, withinPercentage(1));
+        assertThat(difference).noneMatch(poly -> geoProvider.isInside(poly, new Position(0.015, 0.015)));
+        assertThat(difference).anyMatch(poly -> geoProvider.isInside(poly, new Position(0.005, 0.005)));
+    }
 }
@@ -0,0 +1,125 @@
+package soturi;
+
+import jakarta.annotation.PreDestroy;
+import org.junit.jupiter.api.Test;
+import soturi.server.database.PlayerEntity;
+import soturi.server.database.PlayerRepository;
+import soturi.server.database.PlayerWriteBehind;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class PlayerWriteBehindTests {
+    PlayerRepository repository = mock();
+    PlayerWriteBehind writeBehind = new PlayerWriteBehind(repository);
+    /** Every batch passed to {@code saveAll}, as xp of the written players */
+    List<List<Long>> written = new ArrayList<>();
+    boolean databaseDown = false;
+
+    PlayerWriteBehindTests() {
+        when(repository.saveAll(any())).thenAnswer(invocation -> {
+            if (databaseDown)
+                throw new RuntimeException("database is down");
+            List<Long> batch = new ArrayList<>();
+            for (PlayerEntity entity : invocation.<Iterable<PlayerEntity>>getArgument(0))
+                batch.add(entity.getXp());
+            written.add(batch);
+            return List.of();
+        });
+    }
+
+    private static PlayerEntity player(String name, long xp) {
+        PlayerEntity entity = new PlayerEntity(name, "");
+        entity.setXp(xp);
+        return entity;
+    }
+
+    @Test
+    void changes_are_coalesced_and_copied_when_marked() {
+        PlayerEntity a = player("a", 1);
+        writeBehind.markDirty(a);
+        a.setXp(2);
+        writeBehind.markDirty(a);
+        // not marked yet, a flush must not see it
+        a.setXp(3);
+        a.setInventory(List.of(7L));
+
+        writeBehind.flushAll();
+        assertThat(written).containsExactly(List.of(2L));
+        assertThat(writeBehind.getStats().flushedRows()).isOne();
+
+        writeBehind.flushAll();
+        assertThat(written).hasSize(1);
+    }
+
+    @Test
+    void failed_write_is_retried() {
+        databaseDown = true;
+        writeBehind.markDirty(player("a", 1));
+        writeBehind.markDirty(player("b", 1));
+
+        writeBehind.flushAll();
+        assertThat(written).isEmpty();
+        assertThat(writeBehind.unsaved("a")).map(PlayerEntity::getXp).contains(1L);
+        assertThat(writeBehind.getStats().pendingRows()).isEqualTo(2);
+
+        // a change marked after the failure wins over the failed state
+        writeBehind.markDirty(player("b", 2));
+        databaseDown = false;
+        writeBehind.flushAll();
+        assertThat(written).containsExactly(List.of(1L, 2L));
+        assertThat(writeBehind.unsaved("a")).isEmpty();
+        assertThat(writeBehind.getStats().flushes()).isOne();
+    }
+
+    @Test
+    void unsaved_state_is_visible_to_login_until_written() {
+        PlayerEntity a = player("a", 1);
+        writeBehind.markDirty(a);
+
+        // logout takes the state, the login that follows has to see it before the write
+        List<PlayerWriteBehind.Dirty> taken = writeBehind.take("a");
+        PlayerEntity relogged = writeBehind.unsaved("a").orElseThrow();
+        assertThat(relogged).isNotSameAs(a);
+        assertThat(relogged.getXp()).isEqualTo(1);
+
+        // the new session changes its own copy, not the state being written
+        relogged.setXp(5);
+        writeBehind.write(taken);
+        assertThat(written).containsExactly(List.of(1L));
+        assertThat(writeBehind.unsaved("a")).isEmpty();
+        assertThat(writeBehind.unsaved("b")).isEmpty();
+    }
+
+    @Test
+    void logout_overtaking_a_flush_is_not_overwritten() {
+        writeBehind.markDirty(player("a", 1));
+        // a flush takes its batch (flushAll is take then write) ...
+        List<PlayerWriteBehind.Dirty> flush = writeBehind.take("a");
+
+        // ... the player changes and logs out before the flush gets to write
+        writeBehind.markDirty(player("a", 2));
+        List<PlayerWriteBehind.Dirty> logout = writeBehind.take("a");
+        assertThat(writeBehind.unsaved("a")).map(PlayerEntity::getXp).contains(2L);
+        writeBehind.write(logout);
+
+        // the stale batch of the flush must not overwrite the newer row
+        writeBehind.write(flush);
+        assertThat(written).containsExactly(List.of(2L));
+        assertThat(writeBehind.unsaved("a")).isEmpty();
+    }
+
+    @Test
+    void pending_state_is_flushed_on_shutdown() throws NoSuchMethodException {
+        assertThat(PlayerWriteBehind.class.getMethod("flushOnShutdown").isAnnotationPresent(PreDestroy.class)).isTrue();
+
+        writeBehind.markDirty(player("a", 1));
+        writeBehind.markDirty(player("b", 2));
+        writeBehind.flushOnShutdown();
+        assertThat(written).containsExactly(List.of(1L, 2L));
+    }
+}
@@ -3,16 +3,39 @@ package soturi;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.web.socket.TextMessage;
+import soturi.common.BinaryCodec;
+import soturi.common.ConfigHash;
 import soturi.common.Jackson;
 import soturi.model.Config;
+import soturi.model.Enemy;
 import soturi.model.EnemyId;
+import soturi.model.EnemyTypeId;
+import soturi.model.ItemId;
+import soturi.model.Player;
+import soturi.model.Position;
 import soturi.model.QuestStatus;
 import soturi.model.Reward;
+import soturi.model.Statistics;
+import soturi.model.messages_to_client.ConfigDelta;
+import soturi.model.messages_to_client.EnemiesAppear;
+import soturi.model.messages_to_client.EnemiesDisappear;
+import soturi.model.messages_to_client.MeUpdate;
+import soturi.model.messages_to_client.MessageToClient;
+import soturi.model.messages_to_client.PlayerDisappears;
+import soturi.model.messages_to_client.PlayerUpdate;
+import soturi.model.messages_to_client.Pong;
+import soturi.model.messages_to_client.QuestUpdate;
 import soturi.model.messages_to_server.AttackEnemy;
 import soturi.model.messages_to_server.MessageToServer;
+import soturi.model.messages_to_server.UpdateLookingPosition;
 import soturi.server.DynamicConfig;
+import soturi.server.communication.EncodedFrameCache;
 
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -50,4 +73,62 @@ class SerializationTests {
         QuestStatus deserial = objectMapper.readValue(serial, QuestStatus.class);
         assertThat(qs).isEqualTo(deserial);
     }
+
+    @Test
+    public void configDeltaCycle() throws Throwable {
+        Config base = new DynamicConfig(objectMapper, null).getDefaultConfig();
+        Config target = base.withHealFraction(base.healFraction() / 2).withMaxLvl(base.maxLvl() - 1);
+
+        MessageToClient message = new ConfigDelta(ConfigHash.of(base), ConfigHash.of(target), ConfigHash.delta(base, target));
+        String serial = objectMapper.writeValueAsString(message);
+        ConfigDelta deserial = (ConfigDelta) objectMapper.readValue(serial, MessageToClient.class);
+
+        assertThat(deserial.sections()).containsOnlyKeys("healFraction", "maxLvl");
+        Config applied = ConfigHash.apply(base, deserial.sections());
+        assertThat(applied).isEqualTo(target);
+        assertThat(ConfigHash.of(applied)).isEqualTo(deserial.hash()).isNotEqualTo(deserial.baseHash());
+    }
+
+    @Test
+    public void encodedFrameCacheSharesBroadcasts() throws Throwable {
+        EncodedFrameCache frames = new EncodedFrameCache(objectMapper);
+        List<EnemyId> ids = List.of(new EnemyId(1), new EnemyId(2));
+
+        TextMessage frame = frames.json(new EnemiesDisappear(ids));
+        assertThat(frames.json(new EnemiesDisappear(ids))).isSameAs(frame);
+        // an equal payload of another broadcast is not compared element by element
+        assertThat(frames.json(new EnemiesDisappear(new ArrayList<>(ids)))).isNotSameAs(frame);
+        assertThat(objectMapper.readValue(frame.getPayload(), MessageToClient.class)).isEqualTo(new EnemiesDisappear(ids));
+        assertThat(frames.json(new Pong())).isNotSameAs(frames.json(new Pong()));
+    }
+
+    @Test
+    public void binaryCodecCycle() throws Throwable {
+        Player player = new Player("p", 3, 1234, -5, new Statistics(100, 20, 5), List.of(new ItemId(1)), List.of());
+        List<MessageToClient> toClient = List.of(
+            new EnemiesAppear(List.of(
+                new Enemy(new EnemyTypeId(7), new EnemyId(100), 3, Position.KRAKOW),
+                new Enemy(new EnemyTypeId(0), new EnemyId(42), 1, Position.WARSZAWA)
+            )),
+            new EnemiesDisappear(List.of(new EnemyId(100), new EnemyId(42))),
+            new PlayerUpdate(player, Position.KRAKOW),
+            new MeUpdate(player),
+            new PlayerDisappears("p"),
+            new QuestUpdate(Instant.ofEpochSecond(42), List.of(new QuestStatus("q", 0, 3, new Reward(5))))
+        );
+        List<MessageToServer> toServer = List.of(
+            new AttackEnemy(new EnemyId(42)),
+            new UpdateLookingPosition(Position.KRAKOW)
+        );
+
+        BinaryCodec server = new BinaryCodec(), client = new BinaryCodec();
+        for (MessageToClient message : toClient)
+            assertThat(client.decodeToClient(server.encode(message))).isEqualTo(message);
+        for (MessageToServer message : toServer)
+            assertThat(server.decodeToServer(client.encode(message))).isEqualTo(message);
+
+        // the name is already in the dictionary, only its reference is sent
+        assertThat(server.encode(new PlayerDisappears("p"))).hasSize(2);
+        assertThat(server.encode(toClient.get(0))).hasSizeLessThan(objectMapper.writeValueAsBytes(toClient.get(0)).length / 4);
+    }
 }
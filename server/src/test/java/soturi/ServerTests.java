@@ -2,25 +2,35 @@ package soturi;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
+import soturi.common.GeoProvider;
+import soturi.common.Jackson;
 import soturi.common.Registry;
 import soturi.model.Config;
+import soturi.model.DifficultyLvl;
 import soturi.model.Enemy;
 import soturi.model.EnemyId;
 import soturi.model.EnemyType;
+import soturi.model.EnemyTypeId;
 import soturi.model.FightResult;
 import soturi.model.Item;
 import soturi.model.ItemId;
 import soturi.model.Player;
+import soturi.model.Polygon;
 import soturi.model.PolygonId;
+import soturi.model.PolygonWithDifficulty;
 import soturi.model.Position;
 import soturi.model.QuestStatus;
+import soturi.model.Rectangle;
 import soturi.model.Result;
 import soturi.model.Reward;
 import soturi.model.Statistics;
 import soturi.model.messages_to_client.Disconnect;
+import soturi.model.messages_to_client.EnemiesAppear;
 import soturi.model.messages_to_client.EnemiesDisappear;
 import soturi.model.messages_to_client.Error;
 import soturi.model.messages_to_client.FightInfo;
@@ -28,19 +38,44 @@ import soturi.model.messages_to_client.MessageToClient;
 import soturi.model.messages_to_client.MessageToClientFactory;
 import soturi.model.messages_to_client.MessageToClientHandler;
 import soturi.model.messages_to_client.QuestUpdate;
+import soturi.model.messages_to_server.MessageToServerHandler;
 import soturi.server.DynamicConfig;
 import soturi.server.FightSimulator;
 import soturi.server.GameService;
+import soturi.server.WorldSnapshot;
+import soturi.server.database.FightRepository;
 import soturi.server.database.PlayerEntity;
 import soturi.server.database.PlayerRepository;
+import soturi.server.database.PlayerWriteBehind;
+import soturi.server.geo.City;
 import soturi.server.geo.CityProvider;
+import soturi.server.geo.JTSGeoProvider;
+import soturi.server.geo.MonsterManager;
+import soturi.server.geo.RegionCache;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.AdditionalAnswers.delegatesTo;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
@@ -56,6 +91,8 @@ public class ServerTests {
     CityProvider cityProvider;
     @Autowired
     DynamicConfig dynamicConfig;
+    @Autowired
+    FightRepository fightRepository;
     Registry registry;
     FightSimulator fightSimulator;
     PolygonId POLAND = new PolygonId("POLAND");
@@ -205,6 +242,18 @@ public class ServerTests {
         verify(received, never()).disconnect();
     }
     @Test
+    void registered_players_include_state_not_written_yet() {
+        gameService.login("p", "", Position.KRAKOW, mock());
+        healPlayers();
+        Enemy enemy = newEnemy(1, Position.KRAKOW, new EnemyId(0));
+        gameService.registerEnemy(enemy);
+        gameService.receiveFrom("p").attackEnemy(enemy.enemyId());
+
+        Player live = gameService.getPlayers().getFirst().player();
+        assertThat(live.xp()).isPositive();
+        assertThat(gameService.getRegisteredPlayers()).containsExactly(live);
+    }
+    @Test
     void player_attacks_monster_and_loses() {
         MessageToClientHandler received = mock();
         gameService.login("p", "", Position.KRAKOW, received);
@@ -219,8 +268,168 @@ public class ServerTests {
         verify(received, never()).disconnect();
     }
     @Test
+    void only_visible_enemies_disappear_for_player() {
+        MessageToClientHandler received = mock();
+        gameService.login("p", "", Position.KRAKOW, received);
+
+        Enemy near = newEnemy(1, Position.KRAKOW, new EnemyId(0));
+        gameService.registerEnemy(near);
+        gameService.unregisterAllEnemies();
+        verify(received).enemiesAppear(List.of(near));
+        verify(received).enemiesDisappear(List.of(near.enemyId()));
+
+        // slot of the first enemy is reused by one that the player cannot see
+        Enemy far = newEnemy(1, Position.WARSZAWA, new EnemyId(1));
+        gameService.registerEnemy(far);
+        gameService.unregisterAllEnemies();
+        verify(received, never()).enemiesAppear(List.of(far));
+        verify(received, never()).enemiesDisappear(List.of(far.enemyId()));
+    }
+    @Test
+    void enemies_leave_and_enter_interest_area_with_player() {
+        MessageToClientHandler received = mock();
+        gameService.login("p", "", Position.KRAKOW, received);
+        Enemy enemy = newEnemy(1, Position.KRAKOW, new EnemyId(0));
+        gameService.registerEnemy(enemy);
+        verify(received).enemiesAppear(List.of(enemy));
+
+        // small moves stay within the hysteresis of the current cell
+        gameService.receiveFrom("p").updateLookingPosition(new Position(50.07, 19.94));
+        gameService.receiveFrom("p").updateLookingPosition(Position.KRAKOW);
+        verify(received, never()).enemiesDisappear(any());
+
+        gameService.receiveFrom("p").updateLookingPosition(Position.WARSZAWA);
+        verify(received).enemiesDisappear(List.of(enemy.enemyId()));
+
+        gameService.receiveFrom("p").updateLookingPosition(Position.KRAKOW);
+        verify(received, times(2)).enemiesAppear(List.of(enemy));
+    }
+    @Test
+    void only_enemies_within_visibility_range_are_sent() {
+        MessageToClientHandler received = mock();
+        gameService.login("p", "", Position.KRAKOW, received);
+        int range = registry.getVisibilityRangeInMeters();
+
+        Enemy inside = newEnemy(1, Position.KRAKOW.move(range - 500, 0), new EnemyId(0));
+        Enemy outside = newEnemy(1, Position.KRAKOW.move(range + 500, 0), new EnemyId(1));
+        gameService.registerEnemies(List.of(inside, outside));
+        verify(received).enemiesAppear(List.of(inside));
+
+        // past the refresh range the circle is centered again, the enemy in the north is now out of range
+        gameService.receiveFrom("p").updateLookingPosition(Position.KRAKOW.move(-registry.getVisibilityRefreshRangeInMeters() - 1000, 0));
+        verify(received).enemiesDisappear(List.of(inside.enemyId()));
+        verify(received, never()).enemiesAppear(argThat(list -> list.contains(outside)));
+    }
+    @Test
+    void session_is_handed_off_to_the_shard_of_its_new_position() {
+        MessageToClientHandler received = mock();
+        gameService.login("p", "", Position.KRAKOW, received);
+        Enemy far = newEnemy(1, Position.WARSZAWA, new EnemyId(0));
+        gameService.registerEnemy(far);
+        verify(received, never()).enemiesAppear(List.of(far));
+
+        gameService.receiveFrom("p").updateLookingPosition(Position.WARSZAWA);
+        verify(received).enemiesAppear(List.of(far));
+
+        // enemies near the old position are no longer routed to the session
+        Enemy left = newEnemy(1, Position.KRAKOW, new EnemyId(1));
+        gameService.registerEnemy(left);
+        gameService.unregisterAllEnemies();
+        verify(received, never()).enemiesAppear(List.of(left));
+        verify(received).enemiesDisappear(List.of(far.enemyId()));
+        verify(received, never()).enemiesDisappear(List.of(left.enemyId()));
+    }
+    @Test
+    void kills_reach_sessions_handed_off_concurrently() throws InterruptedException {
+        gameService.login("k", "", Position.WARSZAWA, mock());
+        gameService.logout("k");
+        setLvl("k", 20);
+        gameService.login("k", "", Position.WARSZAWA, mock());
+        List<MessageToClient> received = Collections.synchronizedList(new ArrayList<>());
+        gameService.login("p", "", Position.KRAKOW, new MessageToClientFactory(received::add));
+
+        List<Enemy> enemies = new ArrayList<>();
+        for (int i = 0; i < 300; ++i)
+            enemies.add(newEnemy(1, Position.WARSZAWA, new EnemyId(i)));
+        gameService.registerEnemies(enemies);
+
+        // p keeps crossing between the tiles of both cities while k kills everything around Warszawa
+        Thread mover = Thread.ofPlatform().start(() -> {
+            for (int i = 0; i < 200; ++i)
+                gameService.receiveFrom("p").updateLookingPosition(i % 2 == 0 ? Position.WARSZAWA : Position.KRAKOW);
+        });
+        for (Enemy enemy : enemies) {
+            gameService.healPlayers();
+            gameService.receiveFrom("k").attackEnemy(enemy.enemyId());
+        }
+        mover.join();
+        gameService.unregisterAllEnemies();
+
+        List<EnemyId> appeared = received.stream()
+            .flatMap(m -> m instanceof EnemiesAppear appear ? appear.enemies().stream().map(Enemy::enemyId) : Stream.empty())
+            .toList();
+        List<EnemyId> disappeared = received.stream()
+            .flatMap(m -> m instanceof EnemiesDisappear disappear ? disappear.enemyIds().stream() : Stream.empty())
+            .toList();
+        assertThat(appeared).isNotEmpty();
+        assertThat(disappeared).containsAll(appeared);
+    }
+    @Test
+    void world_snapshot_follows_enemies_and_players() {
+        WorldSnapshot before = gameService.getSnapshot();
+        gameService.login("p", "", Position.KRAKOW, mock());
+        Enemy enemy = newEnemy(1, Position.KRAKOW, new EnemyId(0));
+        gameService.registerEnemy(enemy);
+
+        WorldSnapshot after = gameService.getSnapshot();
+        assertThat(after.version()).isGreaterThan(before.version());
+        assertThat(after.enemies().values()).containsExactly(enemy);
+        assertThat(after.players().values()).extracting(p -> p.player().name()).containsExactly("p");
+        assertThat(before.enemies().size()).isZero();
+
+        gameService.logout("p");
+        assertThat(gameService.getPlayers()).isEmpty();
+        assertThat(after.players().size()).isOne();
+    }
+    @Test
+    void message_arriving_after_logout_is_dropped() {
+        MessageToClientHandler observer = mock();
+        gameService.addObserver("o", observer);
+        gameService.login("p", "", Position.KRAKOW, mock());
+        // looked up before the logout, processed after it
+        MessageToServerHandler handler = gameService.receiveFrom("p");
+        gameService.logout("p");
+        clearInvocations(observer);
+
+        handler.updateLookingPosition(Position.WARSZAWA);
+        assertThat(gameService.getPlayers()).isEmpty();
+        verify(observer, never()).playerUpdate(any(), any());
+    }
+    @Test
+    void login_with_current_config_hash_skips_config() {
+        MessageToClientHandler received = mock();
+        gameService.login("p", "", Position.KRAKOW, received, registry.getConfigHash());
+        verify(received, never()).setConfig(any());
+        verify(received, never()).configDelta(any(), any(), any());
+    }
+    @Test
+    void scalar_config_change_keeps_enemies() {
+        MessageToClientHandler received = mock();
+        gameService.login("p", "", Position.KRAKOW, received);
+
+        Enemy enemy = newEnemy(1, Position.KRAKOW, new EnemyId(0));
+        gameService.registerEnemy(enemy);
+
+        Config config = registry.getConfig();
+        gameService.setConfig(config.withHealFraction(config.healFraction() / 2));
+        assertThat(gameService.getEnemies()).containsExactly(enemy);
+        assertThat(dynamicConfig.getRegistry().getHealFraction()).isEqualTo(config.healFraction() / 2);
+        verify(received, never()).enemiesDisappear(any());
+        verify(received).configDelta(eq(registry.getConfigHash()), any(), argThat(d -> d.keySet().equals(Set.of("healFraction"))));
+    }
+    @Test
     void wieliczka_to_wieś() {
-        assertThat(cityProvider.getCities())
+        assertThat(cityProvider.getCities(registry.getCountryCodes()))
             .anyMatch(c -> c.name().equals("Wieliczka") && c.population() < 50000);
     }
     @Test
@@ -469,4 +678,395 @@ public class ServerTests {
         assertThat(questUpdates.getLast().quests()).anyMatch(QuestStatus::isFinished);
         assertThat(questUpdates).size().isGreaterThanOrEqualTo(2);
     }
+    /** Difficulty of every cell of the dense {@code n x n} grid over {@code area}, computed like the serial generator did */
+    private static int[][] denseGridDifficulty(Rectangle area, int n, Registry registry, List<City> cities) {
+        List<DifficultyLvl> difficulties = registry.getDifficulties();
+        int[][] difficulty = new int[n][n];
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < n; ++j) {
+                Position center = area.proportionalPosition((i + 0.5) / n, (j + 0.5) / n);
+                difficulty[i][j] = difficulties.size() - 1;
+                for (City city : cities) {
+                    if (city.population() < registry.getCityThreshold())
+                        continue;
+                    double scale = Math.log10(city.population()) / 6;
+                    for (int lvl = 0; lvl < difficulty[i][j]; ++lvl) {
+                        if (city.position().distance(center) < difficulties.get(lvl).radiusInMeters() * scale) {
+                            difficulty[i][j] = lvl;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return difficulty;
+    }
+    /**
+     * Regions the dense grid built over {@code difficulty} as {@code [i, j, size, difficulty, cap]} are added to {@code regions},
+     * the block itself is returned instead if it can still be merged into its parent
+     */
+    private static List<Integer> denseGridRegions(int[][] difficulty, int i, int j, int size, List<List<Integer>> regions) {
+        if (size == 1)
+            return List.of(i, j, 1, difficulty[i][j], 1);
+        int half = size / 2;
+        List<List<Integer>> quadrants = new ArrayList<>();
+        boolean merge = difficulty[i][j] != 0;
+        for (int q = 0; q < 4; ++q) {
+            int qi = i + q / 2 * half, qj = j + q % 2 * half;
+            List<Integer> quadrant = denseGridRegions(difficulty, qi, qj, half, regions);
+            quadrants.add(quadrant);
+            merge = merge && quadrant != null && difficulty[qi][qj] == difficulty[i][j];
+        }
+        if (merge)
+            return List.of(i, j, size, difficulty[i][j], quadrants.getFirst().get(4) * 3);
+        for (List<Integer> quadrant : quadrants)
+            if (quadrant != null)
+                regions.add(quadrant);
+        return null;
+    }
+    private static List<List<Integer>> denseGridRegions(int[][] difficulty) {
+        List<List<Integer>> regions = new ArrayList<>();
+        List<Integer> root = denseGridRegions(difficulty, 0, 0, difficulty.length, regions);
+        if (root != null)
+            regions.add(root);
+        return regions;
+    }
+    private static List<City> randomCities(Rectangle area, Random rnd) {
+        List<City> cities = new ArrayList<>();
+        cities.add(new City("Krakow", 800_000, area.getCenter()));
+        for (int i = 0; i < 10; ++i)
+            cities.add(new City("city" + i, 1000 + rnd.nextInt(200_000), area.randomPosition(rnd)));
+        return cities;
+    }
+    /** Default config played only inside {@code area} */
+    private Config configOver(Rectangle area) {
+        PolygonId testArea = new PolygonId("TEST_AREA");
+        Config defaultConfig = dynamicConfig.getDefaultConfig();
+        Map<PolygonId, Polygon> areas = new HashMap<>(defaultConfig.areas());
+        areas.put(testArea, area.asPolygon());
+        return defaultConfig
+            .withAreas(areas)
+            .withGameAreaId(testArea)
+            .withBannedAreas(List.of())
+            .withGameAreaSplitLvl(6)
+            .withCityThreshold(1000);
+    }
+    private Registry registryOver(Rectangle area) {
+        return dynamicConfig.createRegistry(configOver(area));
+    }
+    @Test
+    void sparse_regions_keep_dense_grid_caps(@TempDir Path cacheDir) {
+        Rectangle area = Position.KRAKOW.centeredArea(40 * 1000);
+        Registry testRegistry = registryOver(area);
+
+        List<City> cities = randomCities(area, new Random(42));
+
+        MonsterManager manager = new MonsterManager(countryCodes -> cities, new RegionCache(cacheDir), testRegistry, () -> null);
+        long sparseTotal = Arrays.stream(manager.snapshotCaps().capLeftByRegion()).asLongStream().sum();
+
+        int[][] difficulty = denseGridDifficulty(area, 1 << testRegistry.getGameAreaSplitLvl(), testRegistry, cities);
+        long denseTotal = denseGridRegions(difficulty).stream().mapToLong(region -> region.get(4)).sum();
+
+        assertThat(Arrays.stream(difficulty).flatMapToInt(Arrays::stream)).contains(0, testRegistry.getDifficulties().size() - 1);
+        assertThat(sparseTotal).isEqualTo(denseTotal);
+    }
+    @Test
+    void enemy_queries_match_brute_force(@TempDir Path cacheDir) {
+        Rectangle area = Position.KRAKOW.centeredArea(100 * 1000);
+        MonsterManager manager = new MonsterManager(countryCodes -> List.of(), new RegionCache(cacheDir), registryOver(area), () -> null);
+        Random rnd = new Random(42);
+
+        List<Enemy> enemies = new ArrayList<>();
+        for (int i = 0; i < 1250; ++i)
+            enemies.add(newEnemy(1, area.randomPosition(rnd), new EnemyId(i)));
+        enemies.subList(0, 1000).forEach(manager::registerEnemy);
+        // removed slots are reused by later enemies
+        for (int i = 0; i < 1000; i += 2)
+            assertThat(manager.unregisterEnemy(enemies.get(i).enemyId())).isNotNegative();
+        enemies.subList(1000, 1250).forEach(manager::registerEnemy);
+
+        List<Enemy> alive = IntStream.range(0, 1250).filter(i -> i >= 1000 || i % 2 == 1).mapToObj(enemies::get).toList();
+        assertThat(manager.getEnemyCount()).isEqualTo(750);
+        assertThat(manager.getAllEnemies()).containsExactlyInAnyOrderElementsOf(alive);
+        assertThat(Arrays.stream(manager.slotsOf(alive)).distinct().count()).isEqualTo(750);
+        for (Enemy enemy : enemies)
+            assertThat(manager.getEnemy(enemy.enemyId())).isEqualTo(alive.contains(enemy) ? Optional.of(enemy) : Optional.empty());
+
+        for (int i = 0; i < 50; ++i) {
+            Position center = area.randomPosition(rnd);
+            List<Enemy> expected = alive.stream().filter(e -> manager.isVisibleFrom(center, e.position())).toList();
+            assertThat(manager.interestChange(null, center, new BitSet()).entered()).containsExactlyInAnyOrderElementsOf(expected);
+        }
+    }
+    @Test
+    void sharded_enemies_are_found_across_shards_and_unregistered_once(@TempDir Path cacheDir) throws InterruptedException {
+        Rectangle area = Position.KRAKOW.centeredArea(100 * 1000);
+        MonsterManager manager = new MonsterManager(countryCodes -> List.of(), new RegionCache(cacheDir), registryOver(area), () -> null);
+        int[] capsBefore = manager.snapshotCaps().capLeftByRegion();
+
+        Random rnd = new Random(42);
+        List<Enemy> enemies = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i)
+            enemies.add(newEnemy(1, area.randomPosition(rnd), new EnemyId(i)));
+        enemies.forEach(manager::registerEnemy);
+        assertThat(manager.getAllEnemies()).containsExactlyInAnyOrderElementsOf(enemies);
+
+        // the visibility circle covers tiles of more than one shard
+        List<Enemy> visible = enemies.stream().filter(e -> manager.isVisibleFrom(Position.KRAKOW, e.position())).toList();
+        assertThat(manager.interestChange(null, Position.KRAKOW, new BitSet()).entered()).containsExactlyInAnyOrderElementsOf(visible);
+
+        int[] slots = manager.slotsOf(enemies);
+        assertThat(Arrays.stream(slots).distinct().count()).isEqualTo(enemies.size());
+
+        // every enemy is unregistered by exactly one of the racing threads
+        List<Integer> unregistered = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; ++t) {
+            List<Enemy> order = new ArrayList<>(enemies);
+            Collections.shuffle(order, new Random(t));
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (Enemy enemy : order) {
+                    int slot = manager.unregisterEnemy(enemy.enemyId());
+                    if (slot >= 0)
+                        unregistered.add(slot);
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertThat(unregistered).containsExactlyInAnyOrderElementsOf(Arrays.stream(slots).boxed().toList());
+        assertThat(manager.getEnemyCount()).isZero();
+        assertThat(manager.snapshotCaps().capLeftByRegion()).containsExactly(capsBefore);
+    }
+    @Test
+    void structural_reload_keeps_enemies_within_new_caps() {
+        // without cities the whole area is one region of the default difficulty with cap 3**splitLvl
+        Rectangle area = Position.KRAKOW.centeredArea(40 * 1000);
+        Config config = configOver(area).withCityThreshold(Long.MAX_VALUE).withGameAreaSplitLvl(2);
+        gameService.setConfig(config);
+
+        int lvl = registry.getDifficulties().getLast().minLvl();
+        Random rnd = new Random(42);
+        List<Enemy> enemies = new ArrayList<>();
+        for (int i = 0; i < 5; ++i)
+            enemies.add(newEnemy(lvl, area.randomPosition(rnd), new EnemyId(i)));
+        gameService.registerEnemies(enemies);
+        assertThat(gameService.getEnemies()).hasSize(5);
+
+        // region cap drops from 9 to 3
+        gameService.setConfig(config.withGameAreaSplitLvl(1));
+        assertThat(gameService.getEnemies()).hasSize(3).isSubsetOf(enemies);
+
+        // total cap of the type drops to 1
+        EnemyTypeId typeId = enemies.getFirst().typeId();
+        List<EnemyType> types = config.enemyTypes().stream()
+            .map(t -> !t.typeId().equals(typeId) ? t : new EnemyType(
+                t.typeId(), t.name(), t.gfxName(), t.minLvl(), t.maxLvl(), t.statisticsMul(), 1, t.xpFactor(),
+                t.spawnAreas(), t.ignoreAreaDifficulty(), t.ignoreAreaCap(), t.failChance(), t.lootList(), t.lootChance()
+            ))
+            .toList();
+        gameService.setConfig(config.withGameAreaSplitLvl(1).withEnemyTypes(types));
+        assertThat(gameService.getEnemies()).hasSize(1).isSubsetOf(enemies);
+
+        // enemies outside of the lvl range of their region are dropped as well
+        int tooLow = registry.getDifficulties().getLast().minLvl() - 1;
+        gameService.unregisterAllEnemies();
+        gameService.registerEnemy(newEnemy(tooLow, Position.KRAKOW, new EnemyId(5)));
+        gameService.setConfig(config);
+        assertThat(gameService.getEnemies()).isEmpty();
+    }
+    @Test
+    void parallel_generator_respects_caps_and_is_deterministic(@TempDir Path cacheDir) {
+        Rectangle area = Position.KRAKOW.centeredArea(100 * 1000);
+        Registry testRegistry = registryOver(area);
+        long[] nextId = {0};
+        MonsterManager manager = new MonsterManager(countryCodes -> List.of(), new RegionCache(cacheDir), testRegistry,
+            () -> new EnemyId(nextId[0]++));
+        MonsterManager.CapSnapshot caps = manager.snapshotCaps();
+
+        List<Enemy> generated = manager.generateEnemies(caps, 42);
+        assertThat(generated).isNotEmpty().hasSizeLessThanOrEqualTo(testRegistry.getMaxSingleSpawn()).allMatch(manager::canHold);
+        // everything generated against the caps fits into them at once
+        assertThat(manager.filterByCaps(generated)).containsExactlyElementsOf(generated);
+        for (EnemyType type : testRegistry.getAllEnemyTypes())
+            if (type.totalCap() >= 0)
+                assertThat(generated).filteredOn(e -> e.typeId().equals(type.typeId())).hasSizeLessThanOrEqualTo(type.totalCap());
+
+        // ids come from the supplier, everything else only from the seed
+        List<Enemy> again = manager.generateEnemies(caps, 42);
+        assertThat(again).hasSameSizeAs(generated);
+        for (int i = 0; i < generated.size(); ++i) {
+            Enemy a = generated.get(i), b = again.get(i);
+            assertThat(new Enemy(b.typeId(), a.enemyId(), b.lvl(), b.position())).isEqualTo(a);
+        }
+    }
+    @Test
+    void region_cache_round_trip_and_invalidation(@TempDir Path cacheDir) throws IOException {
+        Rectangle area = Position.KRAKOW.centeredArea(40 * 1000);
+        Config config = configOver(area);
+        Registry testRegistry = dynamicConfig.createRegistry(config);
+        List<City> cities = List.of(
+            new City("Krakow", 800_000, Position.KRAKOW),
+            new City("Wieliczka", 20_000, Position.KRAKOW.move(-10_000, 5_000))
+        );
+        RegionCache cache = new RegionCache(cacheDir);
+        assertThat(cache.load(testRegistry, cities)).isEmpty();
+
+        // the layout read back behaves exactly like the generated one
+        MonsterManager generated = new MonsterManager(countryCodes -> cities, cache, testRegistry, () -> null);
+        MonsterManager loaded = new MonsterManager(countryCodes -> cities, cache, testRegistry, () -> null);
+        assertThat(loaded.getAreas()).isEqualTo(generated.getAreas());
+        MonsterManager.CapSnapshot caps = generated.snapshotCaps();
+        assertThat(loaded.snapshotCaps().capLeftByRegion()).containsExactly(caps.capLeftByRegion());
+        assertThat(loaded.generateEnemies(caps, 42)).isNotEmpty().isEqualTo(generated.generateEnemies(caps, 42));
+
+        // a hit refreshes the file, so that eviction keeps it
+        List<Path> files;
+        try (Stream<Path> list = Files.list(cacheDir)) {
+            files = list.toList();
+        }
+        assertThat(files).hasSize(1);
+        Path file = files.getFirst();
+        Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+        assertThat(cache.load(testRegistry, cities)).isPresent();
+        assertThat(Files.getLastModifiedTime(file).toMillis()).isPositive();
+
+        // every input of the key invalidates the layout
+        PolygonId banned = new PolygonId("TEST_BANNED");
+        Map<PolygonId, Polygon> areas = new HashMap<>(config.areas());
+        areas.put(banned, Position.KRAKOW.centeredArea(1000).asPolygon());
+        List<DifficultyLvl> difficulties = new ArrayList<>(config.difficultyConfiguration());
+        DifficultyLvl first = difficulties.getFirst();
+        difficulties.set(0, new DifficultyLvl(2 * first.radiusInMeters(), first.minLvl(), first.maxLvl()));
+        Stream.of(
+            configOver(Position.KRAKOW.centeredArea(50 * 1000)),
+            config.withAreas(areas).withBannedAreas(List.of(banned)),
+            config.withGameAreaSplitLvl(config.gameAreaSplitLvl() - 1),
+            config.withDifficultyConfiguration(difficulties),
+            config.withCityThreshold(config.cityThreshold() + 1)
+        ).forEach(changed -> assertThat(cache.load(dynamicConfig.createRegistry(changed), cities)).isEmpty());
+        assertThat(cache.load(testRegistry, List.of(cities.getFirst()))).isEmpty();
+
+        // cities below the threshold do not influence regions
+        List<City> withVillage = new ArrayList<>(cities);
+        withVillage.add(new City("village", config.cityThreshold() - 1, area.getCenter()));
+        assertThat(cache.load(testRegistry, withVillage)).isPresent();
+    }
+    @Test
+    void parallel_regions_match_dense_grid(@TempDir Path cacheDir) {
+        // big enough for the top levels of the quadtree to be built by parallel tasks
+        Rectangle area = Position.KRAKOW.centeredArea(40 * 1000);
+        Registry testRegistry = dynamicConfig.createRegistry(configOver(area).withGameAreaSplitLvl(7));
+        int n = 1 << testRegistry.getGameAreaSplitLvl();
+        List<City> cities = randomCities(area, new Random(7));
+
+        MonsterManager manager = new MonsterManager(countryCodes -> cities, new RegionCache(cacheDir), testRegistry, () -> null);
+        List<PolygonWithDifficulty> areas = manager.getAreas();
+        int[] caps = manager.snapshotCaps().capLeftByRegion();
+        // the game area is a rectangle without banned areas, so every region is one whole area
+        assertThat(areas).hasSize(caps.length);
+
+        double cellLatitude = (area.upperLatitude() - area.lowerLatitude()) / n;
+        double cellLongitude = (area.upperLongitude() - area.lowerLongitude()) / n;
+        List<List<Integer>> sparse = new ArrayList<>();
+        for (int k = 0; k < areas.size(); ++k) {
+            Rectangle r = Rectangle.envelopeOf(areas.get(k).polygon());
+            sparse.add(List.of(
+                (int) Math.round((r.lowerLatitude() - area.lowerLatitude()) / cellLatitude),
+                (int) Math.round((r.lowerLongitude() - area.lowerLongitude()) / cellLongitude),
+                (int) Math.round((r.upperLatitude() - r.lowerLatitude()) / cellLatitude),
+                areas.get(k).difficulty(),
+                caps[k]
+            ));
+        }
+
+        int[][] difficulty = denseGridDifficulty(area, n, testRegistry, cities);
+        assertThat(Arrays.stream(difficulty).flatMapToInt(Arrays::stream).distinct().count()).isGreaterThan(2);
+        assertThat(sparse).containsExactlyInAnyOrderElementsOf(denseGridRegions(difficulty));
+    }
+    /** Enemies of {@code service} are inside the game area of {@code config}, valid for its regions and within its caps */
+    private void assertEnemiesFit(GameService service, Config config, Path cacheDir) {
+        Registry expected = dynamicConfig.createRegistry(config);
+        MonsterManager manager = new MonsterManager(countryCodes -> List.of(), new RegionCache(cacheDir), expected, () -> null);
+        List<Enemy> enemies = service.getEnemies();
+        assertThat(enemies).allMatch(e -> expected.isInsideGameArea(e.position())).allMatch(manager::canHold);
+        assertThat(manager.filterByCaps(enemies)).containsExactlyInAnyOrderElementsOf(enemies);
+    }
+    /** Geo provider that holds every spawn thread on its geometric checks until {@code release} is counted down */
+    private static GeoProvider holdingSpawns(CountDownLatch generating, CountDownLatch release) {
+        GeoProvider jts = new JTSGeoProvider();
+        GeoProvider geoProvider = mock(GeoProvider.class, withSettings().stubOnly().defaultAnswer(delegatesTo(jts)));
+        doAnswer(invocation -> {
+            if (Thread.currentThread().getName().equals("spawn-enemies")) {
+                generating.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            }
+            return jts.isInside(invocation.getArgument(0), invocation.getArgument(1));
+        }).when(geoProvider).isInside(any(), any());
+        return geoProvider;
+    }
+    /** Service that generates spawned enemies on threads collected in {@code spawns} */
+    private GameService spawningInto(List<Thread> spawns, GeoProvider geoProvider, Path cacheDir) {
+        return new GameService(repository, new PlayerWriteBehind(repository), fightRepository,
+            new DynamicConfig(Jackson.mapper, geoProvider), countryCodes -> List.of(), new RegionCache(cacheDir),
+            task -> spawns.add(Thread.ofPlatform().name("spawn-enemies").start(task)));
+    }
+    /** Starts a spawn the same way a tick does, returns the thread generating it */
+    private static Thread spawn(GameService service, List<Thread> spawns) {
+        int before = spawns.size();
+        ReflectionTestUtils.invokeMethod(service, "spawnEnemies");
+        assertThat(spawns).hasSize(before + 1);
+        return spawns.getLast();
+    }
+    @Test
+    void config_reload_during_spawn_commits_only_valid_enemies(@TempDir Path cacheDir) throws InterruptedException {
+        // the spawn thread is held on its first geometric check, after the caps were snapshotted
+        CountDownLatch generating = new CountDownLatch(1), reloaded = new CountDownLatch(1);
+        List<Thread> spawns = new ArrayList<>();
+        GameService service = spawningInto(spawns, holdingSpawns(generating, reloaded), cacheDir);
+        service.setConfig(configOver(Position.KRAKOW.centeredArea(100 * 1000)));
+
+        Thread spawn = spawn(service, spawns);
+        assertThat(generating.await(10, TimeUnit.SECONDS)).isTrue();
+        // much smaller area with a total cap of 81
+        Config smaller = configOver(Position.KRAKOW.centeredArea(10 * 1000)).withGameAreaSplitLvl(4);
+        service.setConfig(smaller);
+        reloaded.countDown();
+        spawn.join();
+        assertEnemiesFit(service, smaller, cacheDir);
+
+        // the next spawn fills the new layout, still within its caps
+        spawn(service, spawns).join();
+        assertThat(service.getEnemies()).isNotEmpty();
+        assertEnemiesFit(service, smaller, cacheDir);
+    }
+    @Test
+    void scalar_reload_during_spawn_commits_enemies_within_caps(@TempDir Path cacheDir) throws InterruptedException {
+        CountDownLatch generating = new CountDownLatch(1), reloaded = new CountDownLatch(1);
+        List<Thread> spawns = new ArrayList<>();
+        GameService service = spawningInto(spawns, holdingSpawns(generating, reloaded), cacheDir);
+        Config config = configOver(Position.KRAKOW.centeredArea(100 * 1000));
+        service.setConfig(config);
+
+        Thread spawn = spawn(service, spawns);
+        assertThat(generating.await(10, TimeUnit.SECONDS)).isTrue();
+        // the layout stays, but every other enemy of a full spawn takes caps the held batch was generated against
+        Config scalar = config.withFightingDistanceMaxInMeters(config.fightingDistanceMaxInMeters() + 1);
+        service.setConfig(scalar);
+        AtomicLong ids = new AtomicLong(1_000_000);
+        MonsterManager twin = new MonsterManager(countryCodes -> List.of(), new RegionCache(cacheDir),
+            dynamicConfig.createRegistry(scalar), () -> new EnemyId(ids.getAndIncrement()));
+        List<Enemy> full = twin.generateEnemies(twin.snapshotCaps(), 7);
+        List<Enemy> direct = LongStream.range(0, full.size()).filter(i -> i % 2 == 0).mapToObj(i -> full.get((int) i)).toList();
+        service.registerEnemies(direct);
+        reloaded.countDown();
+        spawn.join();
+
+        List<Enemy> committed = new ArrayList<>(service.getEnemies());
+        assertThat(committed).containsAll(direct);
+        committed.removeAll(direct);
+        assertThat(committed).isNotEmpty();
+        assertEnemiesFit(service, scalar, cacheDir);
+    }
 }